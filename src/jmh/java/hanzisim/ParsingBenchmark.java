@@ -0,0 +1,30 @@
+package hanzisim;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup cost: parsing the decomposition file and flattening all decompositions
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Dfile.encoding=UTF-8")
+@State(Scope.Benchmark)
+public class ParsingBenchmark {
+    @Param("src/main/resources")
+    public String resources;
+
+    @Benchmark
+    public Map<String, CjkDecomp> readCjkDecomp() {
+        return Resources.readCjkDecomp(resources + "/cjk-decomp.txt");
+    }
+
+    @Benchmark
+    public Map<String, FlatDecomp[]> flattenDecomposition() {
+        return Resources.flattenDecomposition(resources + "/cjk-decomp.txt", resources + "/chinese-radicals.csv", null);
+    }
+}
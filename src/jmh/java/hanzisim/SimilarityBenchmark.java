@@ -0,0 +1,81 @@
+package hanzisim;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scoring hot paths: similarity of a single pair, position similarity and sorting a full row of scores.
+ * The data is loaded once per fork from the bundled resources.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dfile.encoding=UTF-8")
+@State(Scope.Benchmark)
+public class SimilarityBenchmark {
+    /**
+     * Pairs of characters: short decompositions, long decompositions and decompositions with repeated components
+     */
+    @Param({"注汪", "鬱鬰", "品器"})
+    public String pair;
+
+    @Param("src/main/resources")
+    public String resources;
+
+    private SimilarityEngine engine;
+    private int i;
+    private int j;
+    private float[] scratch;
+    private float[] row;
+    private float centerH1, centerV1, centerH2, centerV2;
+    private int gridH1, gridV1, gridH2, gridV2;
+
+    @Setup
+    public void setup() {
+        engine = SimilarityEngine.fromFiles(resources + "/cjk-decomp.txt", resources + "/chinese-radicals.csv",
+                resources + "/kanji-mapping-table.txt", null);
+        i = engine.indexOf(pair.substring(0, pair.offsetByCodePoints(0, 1)));
+        j = engine.indexOf(pair.substring(pair.offsetByCodePoints(0, 1)));
+        scratch = engine.data.decomp.newScratch();
+
+        // a realistic row: mostly zeros with the scores of the candidates sharing a component
+        row = new float[engine.characters().size()];
+        Workspace ws = engine.borrow();
+        engine.scoreAll(i, row, ws);
+        engine.release(ws);
+
+        Random rng = new Random(42);
+        centerH1 = rng.nextFloat();
+        centerV1 = rng.nextFloat();
+        centerH2 = rng.nextFloat();
+        centerV2 = rng.nextFloat();
+        gridH1 = Math.round(centerH1 * PackedDecomps.GRID);
+        gridV1 = Math.round(centerV1 * PackedDecomps.GRID);
+        gridH2 = Math.round(centerH2 * PackedDecomps.GRID);
+        gridV2 = Math.round(centerV2 * PackedDecomps.GRID);
+    }
+
+    @Benchmark
+    public float charSimilarity() {
+        return engine.similarity(i, j, scratch);
+    }
+
+    @Benchmark
+    public float positionSimilarity() {
+        return PackedDecomps.calculatePositionSimilarity(centerH1, centerV1, centerH2, centerV2);
+    }
+
+    @Benchmark
+    public float positionSimilarityLookup() {
+        return ScoringParams.DEFAULT.positionTable[Math.abs(gridH1 - gridH2) * PackedDecomps.TABLE_SIZE + Math.abs(gridV1 - gridV2)];
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int[] argsort() {
+        return ArrayUtils.argsort(row, false);
+    }
+}
@@ -34,6 +34,42 @@ public final class ArrayUtils {
         return asArray(indexes);
     }
 
+    /**
+     * Same as the first k entries of argsort(a, false), but without sorting all non-zero entries
+     */
+    public static int[] topK(final float[] a, final int k) {
+        TopK top = new TopK(k);
+        for (int i = 0; i < a.length; i++) {
+            top.offer(i, a[i]);
+        }
+        top.sort();
+        int[] indexes = new int[top.size()];
+        for (int r = 0; r < indexes.length; r++) {
+            indexes[r] = top.index(r);
+        }
+        return indexes;
+    }
+
+    /**
+     * Position of index in argsort(a, false), found by counting instead of sorting
+     *
+     * @return The position or -1 if a[index] is zero and therefore not ranked at all
+     */
+    public static int rank(final float[] a, final int index) {
+        final float score = a[index];
+        if (score == 0)
+            return -1;
+        int rank = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] != 0) {
+                int cmp = Float.compare(a[i], score);
+                if (cmp > 0 || (cmp == 0 && i < index))
+                    rank++;
+            }
+        }
+        return rank;
+    }
+
     public static <T extends Number> int[] asArray(final T... a) {
         int[] b = new int[a.length];
         for (int i = 0; i < b.length; i++) {
@@ -86,6 +122,18 @@ public final class ArrayUtils {
         }
     }
 
+    /**
+     * 64 bit finalizer of MurmurHash3
+     */
+    static long mix(long x) {
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb93fe53e9a6bL;
+        x ^= x >>> 33;
+        return x;
+    }
+
     private ArrayUtils() {
     }
 }
@@ -0,0 +1,17 @@
+package hanzisim;
+
+/**
+ * Selects the characters that are scored when ranking a character
+ */
+public interface CandidateSource {
+    /**
+     * Writes the indices of the characters to score against the query character into candidates
+     *
+     * @param query      index of the query character in allChars
+     * @param stamps     per-thread scratch array with one entry per character, used to avoid duplicates
+     * @param stamp      value that is unique to this call for the given stamps array
+     * @param candidates output array with one entry per character
+     * @return number of candidates written. The query character itself is not included.
+     */
+    int collectCandidates(int query, int[] stamps, int stamp, int[] candidates);
+}
@@ -0,0 +1,119 @@
+package hanzisim;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+/**
+ * The characters of a snapshot in a fixed order, stored as one int per character instead of a String. The int is the
+ * code point, or the negated number of an unencoded component of the decomposition. Positions are looked up through
+ * an open-addressed table over these ints, and Strings are only created when a character is read.
+ */
+public class CharacterList extends AbstractList<String> implements RandomAccess {
+    private final int[] keys;
+    // position + 1 of the character in each slot, 0 is an empty slot
+    private final int[] slots;
+
+    CharacterList(int[] keys) {
+        this.keys = keys;
+        // load factor at most 1/2
+        slots = new int[Integer.highestOneBit(Math.max(1, keys.length) * 2) * 2];
+        int mask = slots.length - 1;
+        for (int i = 0; i < keys.length; i++) {
+            int s = slot(keys[i], mask);
+            while (slots[s] != 0) {
+                if (keys[slots[s] - 1] == keys[i])
+                    throw new IllegalArgumentException("Duplicate character " + toString(keys[i]));
+                s = (s + 1) & mask;
+            }
+            slots[s] = i + 1;
+        }
+    }
+
+    public static CharacterList of(Collection<String> characters) {
+        int[] keys = new int[characters.size()];
+        int i = 0;
+        for (String c : characters) {
+            keys[i] = keyOf(c);
+            if (keys[i] == 0)
+                throw new IllegalArgumentException("Not a character or number: " + c);
+            i++;
+        }
+        return new CharacterList(keys);
+    }
+
+    /**
+     * @return The code point of a character, the negated number of an unencoded component or 0 if it's neither
+     */
+    static int keyOf(String c) {
+        if (c.codePointCount(0, c.length()) == 1)
+            return c.codePointAt(0);
+        if (c.isEmpty() || c.length() > 9)
+            return 0;
+        for (int i = 0; i < c.length(); i++) {
+            if (!Character.isDigit(c.charAt(i)))
+                return 0;
+        }
+        return -Integer.parseInt(c);
+    }
+
+    private static String toString(int key) {
+        return key > 0 ? new String(Character.toChars(key)) : Integer.toString(-key);
+    }
+
+    private static int slot(int key, int mask) {
+        return (key * 0x9E3779B9 >>> 7) & mask;
+    }
+
+    @Override
+    public String get(int i) {
+        return toString(keys[i]);
+    }
+
+    @Override
+    public int size() {
+        return keys.length;
+    }
+
+    /**
+     * @return Code point of the character at position i, -1 for an unencoded component
+     */
+    public int codePoint(int i) {
+        return keys[i] > 0 ? keys[i] : -1;
+    }
+
+    int key(int i) {
+        return keys[i];
+    }
+
+    /**
+     * @return Position of the character with the given code point or negated component number, -1 if it's not in the
+     * list
+     */
+    public int indexOfKey(int key) {
+        int mask = slots.length - 1;
+        for (int s = slot(key, mask); slots[s] != 0; s = (s + 1) & mask) {
+            if (keys[slots[s] - 1] == key)
+                return slots[s] - 1;
+        }
+        return -1;
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        if (!(o instanceof String))
+            return -1;
+        int key = keyOf((String) o);
+        return key == 0 ? -1 : indexOfKey(key);
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        return indexOf(o);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return indexOf(o) >= 0;
+    }
+}
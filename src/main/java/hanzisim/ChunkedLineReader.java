@@ -0,0 +1,125 @@
+package hanzisim;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Memory-maps a text file, splits it into chunks that end at line breaks and parses the lines of all chunks in
+ * parallel. The file is always decoded as UTF-8, independent of the platform charset. Since every byte of a multi-byte
+ * UTF-8 sequence is at least 0x80, ASCII separators can be searched for in the raw bytes.
+ */
+class ChunkedLineReader {
+    // smaller chunks aren't worth a task of their own
+    private static final int MIN_CHUNK = 1 << 16;
+
+    interface LineParser<T> {
+        /**
+         * @param end exclusive, the line break is not included
+         */
+        T parse(byte[] bytes, int start, int end);
+    }
+
+    /**
+     * @param skipLines number of header lines that aren't parsed
+     * @return Parsed lines in the order of the file
+     */
+    static <T> List<T> parseLines(String path, int skipLines, final LineParser<T> parser) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        channel.close();
+
+        final int size = buffer.limit();
+        int first = 0;
+        for (int l = 0; l < skipLines && first < size; l++)
+            first = nextLine(buffer, first, size);
+
+        int nChunks = (int) Math.max(1, Math.min((size - first) / MIN_CHUNK, 4L * Runtime.getRuntime().availableProcessors()));
+        final int[] bounds = new int[nChunks + 1];
+        bounds[0] = first;
+        for (int c = 1; c < nChunks; c++)
+            bounds[c] = nextLine(buffer, Math.max(bounds[c - 1], first + (int) ((long) (size - first) * c / nChunks)), size);
+        bounds[nChunks] = size;
+
+        final List<T>[] chunks = newLists(nChunks);
+        IntStream.range(0, nChunks).parallel().forEach(c -> {
+            byte[] bytes = new byte[bounds[c + 1] - bounds[c]];
+            ByteBuffer chunk = buffer.duplicate();
+            chunk.position(bounds[c]);
+            chunk.get(bytes);
+            List<T> lines = new ArrayList<>();
+            int start = 0;
+            while (start < bytes.length) {
+                int end = start;
+                while (end < bytes.length && bytes[end] != '\n')
+                    end++;
+                int next = end + 1;
+                if (end > start && bytes[end - 1] == '\r')
+                    end--;
+                lines.add(parser.parse(bytes, start, end));
+                start = next;
+            }
+            chunks[c] = lines;
+        });
+
+        List<T> result = new ArrayList<>();
+        for (List<T> lines : chunks)
+            result.addAll(lines);
+        return result;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T> List<T>[] newLists(int n) {
+        return (List<T>[]) new List[n];
+    }
+
+    /**
+     * @return Position after the next line break at or after pos, size if there is none
+     */
+    private static int nextLine(ByteBuffer buffer, int pos, int size) {
+        while (pos < size && buffer.get(pos) != '\n')
+            pos++;
+        return Math.min(size, pos + 1);
+    }
+
+    /**
+     * @return Position of the first occurrence of c in [start, end), end if there is none
+     */
+    static int indexOf(byte[] bytes, int start, int end, char c) {
+        while (start < end && bytes[start] != c)
+            start++;
+        return start;
+    }
+
+    static String string(byte[] bytes, int start, int end) {
+        return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Splits [start, end) at every occurrence of separator. Like {@link String#split}, trailing empty strings are
+     * removed unless the range is empty.
+     */
+    static String[] split(byte[] bytes, int start, int end, char separator) {
+        if (start == end)
+            return new String[]{""};
+        List<String> fields = new ArrayList<>();
+        int nonEmpty = 0;
+        while (true) {
+            int stop = indexOf(bytes, start, end, separator);
+            fields.add(string(bytes, start, stop));
+            if (stop > start)
+                nonEmpty = fields.size();
+            if (stop == end)
+                break;
+            start = stop + 1;
+        }
+        return fields.subList(0, nonEmpty).toArray(new String[0]);
+    }
+}
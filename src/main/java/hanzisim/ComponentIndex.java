@@ -0,0 +1,101 @@
+package hanzisim;
+
+import java.util.*;
+
+/**
+ * Inverted index from component to the characters whose flattened decomposition contains it.
+ * Two characters that don't share a component (and aren't variants of each other) always have similarity 0,
+ * so only the characters returned by {@link #collectCandidates} need to be scored.
+ */
+public class ComponentIndex implements CandidateSource {
+    private final int[][] postings;
+    private final int[][] variants;
+    private final PackedDecomps decomp;
+
+    public ComponentIndex(PackedDecomps decomp, CharacterList allChars, VariantGraph variantGraph) {
+        this.decomp = decomp;
+
+        // two passes over the packed components: count the postings of every component, then fill them
+        int[] counts = new int[decomp.components.length];
+        for (int i = 0; i < decomp.size(); i++) {
+            for (int k = decomp.offsets[i]; k < decomp.offsets[i + 1]; k++) {
+                // decompositions are sorted by component so repeated components are adjacent
+                if (k == decomp.offsets[i] || decomp.comps[k] != decomp.comps[k - 1])
+                    counts[decomp.comps[k]]++;
+            }
+        }
+        postings = new int[counts.length][];
+        for (int comp = 0; comp < counts.length; comp++) {
+            postings[comp] = new int[counts[comp]];
+        }
+        Arrays.fill(counts, 0);
+        for (int i = 0; i < decomp.size(); i++) {
+            for (int k = decomp.offsets[i]; k < decomp.offsets[i + 1]; k++) {
+                if (k == decomp.offsets[i] || decomp.comps[k] != decomp.comps[k - 1]) {
+                    int comp = decomp.comps[k];
+                    postings[comp][counts[comp]++] = i;
+                }
+            }
+        }
+
+        // variants get a near-perfect score even without sharing a component
+        variants = new int[allChars.size()][];
+        for (int i = 0; i < allChars.size(); i++) {
+            int codePoint = allChars.codePoint(i);
+            int[] forms = codePoint >= 0 ? variantGraph.variants(codePoint) : new int[0];
+            int[] indices = new int[forms.length];
+            int n = 0;
+            for (int form : forms) {
+                int j = allChars.indexOfKey(form);
+                if (j >= 0)
+                    indices[n++] = j;
+            }
+            variants[i] = Arrays.copyOf(indices, n);
+        }
+    }
+
+    /**
+     * Writes the indices of all characters that may have a non-zero similarity to the query character into candidates
+     */
+    @Override
+    public int collectCandidates(int query, int[] stamps, int stamp, int[] candidates) {
+        int count = 0;
+        stamps[query] = stamp;
+        final int start = decomp.offsets[query];
+        for (int k = start; k < decomp.offsets[query + 1]; k++) {
+            if (k > start && decomp.comps[k] == decomp.comps[k - 1])
+                continue;
+            for (int j : postings[decomp.comps[k]]) {
+                if (stamps[j] != stamp) {
+                    stamps[j] = stamp;
+                    candidates[count++] = j;
+                }
+            }
+        }
+        for (int j : variants[query]) {
+            if (stamps[j] != stamp) {
+                stamps[j] = stamp;
+                candidates[count++] = j;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return Indices of the characters containing the component, in ascending order
+     */
+    int[] postings(int comp) {
+        return postings[comp];
+    }
+
+    /**
+     * @return Indices of the variants of character i, without duplicates
+     */
+    int[] variants(int i) {
+        return variants[i];
+    }
+
+    public int size() {
+        return decomp.size();
+    }
+}
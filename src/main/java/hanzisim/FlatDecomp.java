@@ -9,4 +9,17 @@ public class FlatDecomp {
         this.centerVertical = bottom + (top - bottom) / 2;
         this.centerHorizontal = left + (right - left) / 2;
     }
+
+    private FlatDecomp(String comp, float centerHorizontal, float centerVertical) {
+        this.comp = comp;
+        this.centerVertical = centerVertical;
+        this.centerHorizontal = centerHorizontal;
+    }
+
+    /**
+     * @return This component moved from the unit box into the given box
+     */
+    public FlatDecomp placeIn(float left, float right, float top, float bottom) {
+        return new FlatDecomp(comp, left + centerHorizontal * (right - left), bottom + centerVertical * (top - bottom));
+    }
 }
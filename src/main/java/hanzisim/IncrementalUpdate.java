@@ -0,0 +1,173 @@
+package hanzisim;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * Brings a ranking file up to date after the decomposition, radical or mapping files changed, without computing all
+ * rankings again.
+ * <p>
+ * A character is changed if its flattened decomposition or its variants differ between the snapshot the rankings
+ * were computed from and the current data, or if it was added or removed. Only rows that can be affected are touched:
+ * <ul>
+ * <li>rows of changed characters are computed from scratch</li>
+ * <li>rows that contain a changed character or share a component or variant with one are patched: their unchanged
+ * entries are rescored together with the changed candidates. If a full row (k entries) contained a changed character
+ * its score may have dropped and the next best character isn't known, so such rows are computed from scratch as well</li>
+ * <li>all other rows only contain unchanged scores and are kept</li>
+ * </ul>
+ * Only the rows already in the ranking file and the rows of added characters are written, so files of a shard, of
+ * selected queries or of an unfinished run stay partial.
+ * Characters with equal scores are ranked by their position in the character list, which changes when characters are
+ * added or removed. The order of ties in patched rows may then differ from a full run.
+ */
+public class IncrementalUpdate {
+    private final Snapshot previous;
+    private final SimilarityEngine engine;
+    private final int cutoff;
+    private final Set<String> changed = new HashSet<>();
+    final AtomicInteger recomputed = new AtomicInteger();
+    final AtomicInteger patched = new AtomicInteger();
+
+    public IncrementalUpdate(Snapshot previous, SimilarityEngine engine, int cutoff) {
+        this.previous = previous;
+        this.engine = engine;
+        this.cutoff = cutoff;
+        findChangedCharacters();
+    }
+
+    /**
+     * @return Characters that were added, removed or have a different decomposition or variants
+     */
+    public Set<String> changedCharacters() {
+        return Collections.unmodifiableSet(changed);
+    }
+
+    private void findChangedCharacters() {
+        CharacterList allChars = engine.data.allChars;
+        for (int i = 0; i < allChars.size(); i++) {
+            int p = previous.allChars.indexOfKey(allChars.key(i));
+            if (p < 0 || !engine.data.decomp.sameDecomposition(i, previous.decomp, p))
+                changed.add(allChars.get(i));
+        }
+        for (int p = 0; p < previous.allChars.size(); p++) {
+            // not in the current data anymore
+            if (allChars.indexOfKey(previous.allChars.key(p)) < 0)
+                changed.add(previous.allChars.get(p));
+        }
+
+        // a changed mapping changes the similarity of every form whose group or direct variants differ
+        Set<Integer> mapped = new HashSet<>();
+        for (int codePoint : previous.variants.codePoints())
+            mapped.add(codePoint);
+        for (int codePoint : engine.data.variants.codePoints())
+            mapped.add(codePoint);
+        for (int codePoint : mapped) {
+            if (!Arrays.equals(previous.variants.variants(codePoint), engine.data.variants.variants(codePoint))
+                    || !Arrays.equals(previous.variants.directVariants(codePoint), engine.data.variants.directVariants(codePoint)))
+                changed.add(new String(Character.toChars(codePoint)));
+        }
+    }
+
+    /**
+     * @param rankingLines lines of the ranking file computed from the previous snapshot
+     * @param rows         added characters that get a row in this file, all if it's null
+     * @param candidates   only these characters are ranked, all if it's null
+     * @return Updated lines, in the same order with removed characters left out and added characters at the end
+     */
+    public List<String> update(List<String> rankingLines, BitSet rows, BitSet candidates, int nThreads) {
+        final List<String> allChars = engine.data.allChars;
+        final Map<String, String[]> oldRankings = new HashMap<>();
+        for (String line : rankingLines) {
+            String character = Resources.rankedCharacter(line);
+            String ranking = line.substring(character.length() + 1);
+            oldRankings.put(character, ranking.isEmpty() ? new String[0] : ranking.split(","));
+        }
+
+        final BitSet changedIndices = new BitSet(allChars.size());
+        for (String character : changed) {
+            if (engine.contains(character))
+                changedIndices.set(engine.indexOf(character));
+        }
+        // rows that may score differently against a changed character, the candidate relation is symmetric
+        final BitSet affected = new BitSet(allChars.size());
+        Workspace ws = engine.borrow();
+        for (int c = changedIndices.nextSetBit(0); c >= 0; c = changedIndices.nextSetBit(c + 1)) {
+            int nCandidates = engine.index.collectCandidates(c, ws.stamps, ws.nextStamp(), ws.candidates);
+            for (int n = 0; n < nCandidates; n++)
+                affected.set(ws.candidates[n]);
+        }
+        engine.release(ws);
+
+        final String[] updated = new String[allChars.size()];
+        final ThreadLocal<TopK> tops = ThreadLocal.withInitial(() -> new TopK(cutoff));
+        ForkJoinPool pool = new ForkJoinPool(nThreads);
+        pool.submit(() -> IntStream.range(0, allChars.size()).parallel().forEach(i -> {
+            String[] oldRanking = oldRankings.get(allChars.get(i));
+            // characters that were already there but not ranked in this file stay out of it
+            if (oldRanking == null && (previous.allChars.indexOfKey(engine.data.allChars.key(i)) >= 0
+                    || (rows != null && !rows.get(i))))
+                return;
+            boolean containsChanged = false;
+            if (oldRanking != null) {
+                for (String neighbor : oldRanking)
+                    containsChanged |= changed.contains(neighbor);
+            }
+            if (oldRanking != null && !changedIndices.get(i) && !containsChanged && !affected.get(i))
+                return;
+
+            TopK top = tops.get();
+            Workspace rowWs = engine.borrow();
+            try {
+                if (oldRanking == null || changedIndices.get(i) || (containsChanged && oldRanking.length >= cutoff)) {
+                    engine.rank(i, top, rowWs, candidates);
+                    recomputed.incrementAndGet();
+                } else {
+                    patch(i, oldRanking, changedIndices, candidates, top, rowWs);
+                    patched.incrementAndGet();
+                }
+            } finally {
+                engine.release(rowWs);
+            }
+            updated[i] = TextRankingWriter.line(allChars, i, top);
+        })).join();
+        pool.shutdown();
+
+        List<String> result = new ArrayList<>(allChars.size());
+        for (String line : rankingLines) {
+            String character = Resources.rankedCharacter(line);
+            if (!engine.contains(character))
+                continue;
+            String updatedLine = updated[engine.indexOf(character)];
+            result.add(updatedLine != null ? updatedLine : line);
+        }
+        for (int i = 0; i < allChars.size(); i++) {
+            if (!oldRankings.containsKey(allChars.get(i)) && updated[i] != null)
+                result.add(updated[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Ranks the unchanged entries of the old ranking together with all changed candidates. Every other character had
+     * a score below the old ranking before and still has.
+     */
+    private void patch(int i, String[] oldRanking, BitSet changedIndices, BitSet candidates, TopK top, Workspace ws) {
+        top.clear();
+        for (String neighbor : oldRanking) {
+            if (!changed.contains(neighbor)) {
+                int j = engine.indexOf(neighbor);
+                top.offer(j, engine.similarity(i, j, ws.scratch));
+            }
+        }
+        int nCandidates = engine.index.collectCandidates(i, ws.stamps, ws.nextStamp(), ws.candidates);
+        for (int n = 0; n < nCandidates; n++) {
+            int j = ws.candidates[n];
+            if (changedIndices.get(j) && (candidates == null || candidates.get(j)))
+                top.offer(j, engine.similarity(i, j, ws.scratch));
+        }
+        top.sort();
+    }
+}
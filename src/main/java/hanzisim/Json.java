@@ -0,0 +1,57 @@
+package hanzisim;
+
+import java.util.List;
+
+/**
+ * Just enough JSON writing for the server, the stream method and progress output
+ */
+final class Json {
+    static StringBuilder appendString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                        sb.append(String.format("\\u%04x", (int) c));
+                    else
+                        sb.append(c);
+            }
+        }
+        return sb.append('"');
+    }
+
+    /**
+     * Appends {"char":..., "similar":[{"char":..., "score":...}, ...]}
+     */
+    static StringBuilder appendRanking(StringBuilder sb, String character, List<Neighbor> neighbors) {
+        appendString(sb.append("{\"char\":"), character).append(",\"similar\":[");
+        boolean first = true;
+        for (Neighbor neighbor : neighbors) {
+            if (!first)
+                sb.append(',');
+            first = false;
+            appendString(sb.append("{\"char\":"), neighbor.character);
+            sb.append(",\"score\":").append(neighbor.score).append('}');
+        }
+        return sb.append("]}");
+    }
+
+    private Json() {
+    }
+}
@@ -3,38 +3,132 @@ package hanzisim;
 import org.apache.commons.cli.*;
 
 import java.io.*;
-import java.text.NumberFormat;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
 public class Main {
+    private static final String METHODS = "create, update, evaluate, sweep, merge, compile, serve, stream or matrix";
+    // how many characters to compute between two flushes of the output file to disk
+    private static final int CHECKPOINT_INTERVAL = 1000;
+    // queries ranked together against each tile of candidates by --queries and --candidates
+    private static final int QUERY_BLOCK = 64;
+    // rows of the similarity matrix computed by one task
+    private static final int MATRIX_BLOCK = 16;
+    // evaluate: position of reference characters with similarity 0
+    private static final int UNRANKED = 10000000;
 
-    private static void computeSimilarityRanking(List<String> allChars, float[] similarities, Map<String, FlatDecomp[]> decomp, Map<String, String[]> jpnToChin,
-                                                 int cutoff, int i, final BufferedWriter br) {
+    private static void computeSimilarityRanking(SimilarityEngine engine, Workspace ws, int i, final RankingWriter writer) {
         // could start at j = i and then cache but cache would be very large
-        for (int j = 0; j < allChars.size(); j++) {
-            // don't want the character itself
-            if (i != j) {
-                similarities[j] = calculateCharSimilarity(allChars.get(i), allChars.get(j), decomp, jpnToChin);
-            } else {
-                similarities[j] = 0;
+        engine.rank(i, ws.top, ws, null);
+        writeRanking(writer, ws.top, i);
+    }
+
+    /**
+     * Scores character i against all candidates j > i and offers every score to the rankings of both i and j.
+     * Each pair is only scored once when this is run for every row. Rankings are shared between threads and
+     * locked individually.
+     */
+    private static void computeUpperTriangleRow(SimilarityEngine engine, TopK[] tops, Workspace ws, int i) {
+        long start = Metrics.start();
+        int nCandidates = engine.candidates.collectCandidates(i, ws.stamps, ws.nextStamp(), ws.candidates);
+        final int variantStamp = ws.nextStamp();
+        int scored = 0;
+        int zero = 0;
+        // the variant relation is symmetric, so variants are offered to both rankings without scoring their overlap
+        for (int j : engine.index.variants(i)) {
+            ws.stamps[j] = variantStamp;
+            if (j < i)
+                continue;
+            float similarity = engine.variantSimilarity(i, j, ws.scratch);
+            synchronized (tops[i]) {
+                tops[i].offer(j, similarity);
             }
+            synchronized (tops[j]) {
+                tops[j].offer(i, similarity);
+            }
+            scored += 2;
         }
+        for (int c = 0; c < nCandidates; c++) {
+            int j = ws.candidates[c];
+            if (j < i || ws.stamps[j] == variantStamp)
+                continue;
+            float similarity = engine.data.decomp.componentSimilarity(i, j, ws.scratch, engine.params);
+            synchronized (tops[i]) {
+                tops[i].offer(j, similarity);
+            }
+            synchronized (tops[j]) {
+                tops[j].offer(i, similarity);
+            }
+            if (Metrics.ENABLED) {
+                scored += 2;
+                if (similarity == 0)
+                    zero += 2;
+            }
+        }
+        Metrics.pairs(scored, zero);
+        Metrics.stop(Metrics.Phase.SCORE, start);
+    }
 
-        try {
-            StringBuilder sb = new StringBuilder();
-            sb.append(allChars.get(i)).append(";");
-            int[] similarSorted = ArrayUtils.argsort(similarities, false);
-            // don't write chars to file that have similarity 0
-            for (int j = 0; j < Math.min(similarSorted.length, cutoff) && similarities[similarSorted[j]] > 0; j++) {
-                if (j > 0)
-                    sb.append(",");
-                sb.append(allChars.get(similarSorted[j]));
+    /**
+     * Scores character i against all candidates j > i into similarities and sets all other j > i to 0
+     */
+    private static void computeMatrixRow(SimilarityEngine engine, float[] similarities, Workspace ws, int i) {
+        long start = Metrics.start();
+        Arrays.fill(similarities, i + 1, similarities.length, 0);
+        int nCandidates = engine.index.collectCandidates(i, ws.stamps, ws.nextStamp(), ws.candidates);
+        int scored = 0;
+        int zero = 0;
+        for (int c = 0; c < nCandidates; c++) {
+            int j = ws.candidates[c];
+            if (j < i)
+                continue;
+            similarities[j] = engine.data.decomp.componentSimilarity(i, j, ws.scratch, engine.params);
+            if (Metrics.ENABLED) {
+                scored++;
+                if (similarities[j] == 0)
+                    zero++;
             }
-            sb.append("\n");
-            Resources.write(br, sb.toString());
+        }
+        for (int j : engine.index.variants(i)) {
+            if (j > i)
+                similarities[j] = engine.variantSimilarity(i, j, ws.scratch);
+        }
+        Metrics.pairs(scored, zero);
+        Metrics.stop(Metrics.Phase.SCORE, start);
+    }
+
+    /**
+     * @throws UncheckedIOException if the ranking can't be written, so that it reaches the thread that started the pool
+     */
+    private static void writeRanking(final RankingWriter writer, TopK top, int i) {
+        long start = Metrics.start();
+        try {
+            writer.write(i, top);
+            Metrics.stop(Metrics.Phase.WRITE, start);
         } catch (IOException e) {
-            e.printStackTrace();
-            System.exit(1);
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Removes the hook unless the JVM is already shutting down and running it
+     */
+    private static void removeShutdownHook(Thread hook) {
+        try {
+            Runtime.getRuntime().removeShutdownHook(hook);
+        } catch (IllegalStateException e) {
+            // shutting down
         }
     }
 
@@ -53,9 +147,10 @@ public class Main {
         if (Definitions.DEBUG) {
             System.out.println("Warning: DEBUG is turned on");
         }
+        Metrics.register();
 
         Options options = new Options();
-        options.addOption(makeOption("m", "method", "create or evaluate", true, String.class));
+        options.addOption(makeOption("m", "method", METHODS, true, String.class));
 
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
@@ -69,8 +164,22 @@ public class Main {
             method = cmd.getOptionValue("method");
             if (method.equals("create")) {
                 options = makeCreateOptions();
+            } else if (method.equals("update")) {
+                options = makeUpdateOptions();
             } else if (method.equals("evaluate")) {
                 options = makeEvaluateOptions();
+            } else if (method.equals("sweep")) {
+                options = makeSweepOptions();
+            } else if (method.equals("merge")) {
+                options = makeMergeOptions();
+            } else if (method.equals("compile")) {
+                options = makeCompileOptions();
+            } else if (method.equals("serve")) {
+                options = makeServeOptions();
+            } else if (method.equals("stream")) {
+                options = makeStreamOptions();
+            } else if (method.equals("matrix")) {
+                options = makeMatrixOptions();
             } else {
                 System.err.println("Invalid method");
                 System.exit(1);
@@ -88,8 +197,22 @@ public class Main {
         try {
             if (method.equals("create")) {
                     createSimilarityRanking(cmd);
+            } else if (method.equals("update")) {
+                updateSimilarityRanking(cmd);
             } else if (method.equals("evaluate")) {
                 evaluateSimilarityRanking(cmd);
+            } else if (method.equals("sweep")) {
+                sweepScoringParams(cmd);
+            } else if (method.equals("merge")) {
+                mergeSimilarityRankings(cmd);
+            } else if (method.equals("compile")) {
+                compileSnapshot(cmd);
+            } else if (method.equals("serve")) {
+                serveSimilarityQueries(cmd);
+            } else if (method.equals("stream")) {
+                streamSimilarityQueries(cmd);
+            } else if (method.equals("matrix")) {
+                writeSimilarityMatrix(cmd);
             }
         } catch (ParseException e) {
             e.printStackTrace();
@@ -99,73 +222,514 @@ public class Main {
 
     private static Options makeEvaluateOptions() {
         Options options = new Options();
-        options.addOption(makeOption("m","method", "create or evaluate", true, String.class));
+        options.addOption(makeOption("m","method", METHODS, true, String.class));
         options.addOption(makeOption("d","decomp", "Path to CJK decomposition", true, String.class));
         options.addOption(makeOption("r","radicals", "File with radicals to stop decomposition at", true, String.class));
         options.addOption(makeOption("j", "jpn2chin", "Filename of Japanese to simplified Chinese mapping", true, String.class));
         options.addOption(makeOption("s","testcases", "Filename of testcases for evaluation", true, String.class));
+        options.addOption(makeOption("t","threads", "How many testcases to evaluate in parallel, defaults to the number of cores", false, Number.class));
+        options.addOption(makeOption("b", "snapshot", "Binary snapshot to load the decomposition from, written if outdated", false, String.class));
+        return options;
+    }
+
+    private static Options makeSweepOptions() {
+        Options options = new Options();
+        options.addOption(makeOption("m", "method", METHODS, true, String.class));
+        options.addOption(makeOption("d", "decomp", "Path to CJK decomposition", true, String.class));
+        options.addOption(makeOption("r", "radicals", "Comma-separated files with radicals to stop decomposition at", true, String.class));
+        options.addOption(makeOption("j", "jpn2chin", "Filename of Japanese to simplified Chinese mapping", true, String.class));
+        options.addOption(makeOption("s", "testcases", "Filename of testcases for evaluation", true, String.class));
+        options.addOption(makeOption("v", "variant", "Comma-separated similarities of variants, defaults to " + ScoringParams.DEFAULT.variantScore, false, String.class));
+        options.addOption(makeOption("w", "pair-weight", "Comma-separated weights of matched components, defaults to " + ScoringParams.DEFAULT.pairWeight, false, String.class));
+        options.addOption(makeOption("n", "position-norm", "Comma-separated distances at which positions don't match at all, defaults to sqrt(2)", false, String.class));
+        options.addOption(makeOption("t", "threads", "How many threads to evaluate on, defaults to the number of cores", false, Number.class));
         return options;
     }
 
     private static Options makeCreateOptions() {
         Options options = new Options();
-        options.addOption(makeOption("m", "method", "create or evaluate", true, String.class));
+        options.addOption(makeOption("m", "method", METHODS, true, String.class));
         options.addOption(makeOption("d", "decomp", "Path to CJK decomposition", true, String.class));
         options.addOption(makeOption("r", "radicals", "File with radicals to stop decomposition at", true, String.class));
         options.addOption(makeOption("o", "output", "Filename of output ranking file", true, String.class));
         options.addOption(makeOption("c", "cutoff", "The top k characters to include", true, Number.class));
-        options.addOption(makeOption("t","threads", "How many threads to split the computation into", true, Number.class));
+        options.addOption(makeOption("t","threads", "How many threads to split the computation into, defaults to the number of cores", false, Number.class));
+        options.addOption(makeOption("j", "jpn2chin", "Filename of Japanese to simplified Chinese mapping", true, String.class));
+        options.addOption(makeOption("e", "restrict", "Restrict characters to ones occurring in the specified file", false, String.class));
+        options.addOption("y", "symmetric", false, "Score every pair only once and keep the rankings of all characters in memory");
+        options.addOption(makeOption("p", "shard", "Only compute shard i of N, given as i/N with 0 <= i < N", false, String.class));
+        options.addOption("u", "resume", false, "Append to an existing output file and skip the characters already in it");
+        options.addOption(makeOption("b", "snapshot", "Binary snapshot to load the decomposition from, written if outdated", false, String.class));
+        options.addOption(makeOption("B", "baseline", "Also write the data the rankings are computed from to this file, for a later update", false, String.class));
+        options.addOption(makeOption("f", "format", "text (default) or index for a memory-mappable binary file with scores", false, String.class));
+        options.addOption(makeOption("l", "bands", "Approximate rankings with this many LSH bands, more bands find more similar characters", false, Number.class));
+        options.addOption(makeOption("w", "rows", "Rows per LSH band, defaults to 3. More rows find fewer candidates", false, Number.class));
+        options.addOption(makeOption("x", "recall", "Measure the recall of the approximate rankings on this many random characters", false, Number.class));
+        options.addOption(makeOption("q", "queries", "Only rank the characters occurring in the specified file", false, String.class));
+        options.addOption(makeOption("a", "candidates", "Only rank against the characters occurring in the specified file", false, String.class));
+        return options;
+    }
+
+    private static Options makeUpdateOptions() {
+        Options options = new Options();
+        options.addOption(makeOption("m", "method", METHODS, true, String.class));
+        options.addOption(makeOption("d", "decomp", "Path to CJK decomposition", true, String.class));
+        options.addOption(makeOption("r", "radicals", "File with radicals to stop decomposition at", true, String.class));
+        options.addOption(makeOption("o", "output", "Ranking file to update in place", true, String.class));
+        options.addOption(makeOption("c", "cutoff", "The top k characters the ranking file was created with", true, Number.class));
+        options.addOption(makeOption("t", "threads", "How many threads to split the computation into, defaults to the number of cores", false, Number.class));
+        options.addOption(makeOption("j", "jpn2chin", "Filename of Japanese to simplified Chinese mapping", true, String.class));
+        options.addOption(makeOption("e", "restrict", "Restrict characters to ones occurring in the specified file", false, String.class));
+        options.addOption(makeOption("B", "baseline", "Baseline written by create or the last update, replaced with the current data", true, String.class));
+        options.addOption(makeOption("p", "shard", "The shard i/N the ranking file was created for, added characters go to one of the shards", false, String.class));
+        options.addOption(makeOption("q", "queries", "The queries the ranking file was created with", false, String.class));
+        options.addOption(makeOption("a", "candidates", "The candidates the ranking file was created with", false, String.class));
+        return options;
+    }
+
+    private static Options makeServeOptions() {
+        Options options = new Options();
+        options.addOption(makeOption("m", "method", METHODS, true, String.class));
+        options.addOption(makeOption("d", "decomp", "Path to CJK decomposition", true, String.class));
+        options.addOption(makeOption("r", "radicals", "File with radicals to stop decomposition at", true, String.class));
+        options.addOption(makeOption("j", "jpn2chin", "Filename of Japanese to simplified Chinese mapping", true, String.class));
+        options.addOption(makeOption("e", "restrict", "Restrict characters to ones occurring in the specified file", false, String.class));
+        options.addOption(makeOption("b", "snapshot", "Binary snapshot to load the decomposition from, written if outdated", false, String.class));
+        options.addOption(makeOption("P", "port", "Port to listen on at localhost, defaults to 8080", false, Number.class));
+        options.addOption(makeOption("c", "cutoff", "The top k characters to return if the query doesn't specify k, defaults to 20", false, Number.class));
+        options.addOption(makeOption("t", "threads", "Number of request threads, defaults to a virtual thread per request where available", false, Number.class));
+        options.addOption(makeOption("a", "cache", "How many rankings to cache, defaults to 10000", false, Number.class));
+        options.addOption(makeOption("l", "bands", "Approximate rankings with this many LSH bands, more bands find more similar characters", false, Number.class));
+        options.addOption(makeOption("w", "rows", "Rows per LSH band, defaults to 3. More rows find fewer candidates", false, Number.class));
+        return options;
+    }
+
+    private static Options makeStreamOptions() {
+        Options options = new Options();
+        options.addOption(makeOption("m", "method", METHODS, true, String.class));
+        options.addOption(makeOption("d", "decomp", "Path to CJK decomposition", true, String.class));
+        options.addOption(makeOption("r", "radicals", "File with radicals to stop decomposition at", true, String.class));
+        options.addOption(makeOption("j", "jpn2chin", "Filename of Japanese to simplified Chinese mapping", true, String.class));
+        options.addOption(makeOption("e", "restrict", "Restrict characters to ones occurring in the specified file", false, String.class));
+        options.addOption(makeOption("b", "snapshot", "Binary snapshot to load the decomposition from, written if outdated", false, String.class));
+        options.addOption(makeOption("c", "cutoff", "The top k characters to return, defaults to 20", false, Number.class));
+        options.addOption(makeOption("t", "threads", "How many threads to rank on, defaults to the number of cores", false, Number.class));
+        options.addOption(makeOption("s", "batch", "How many characters to rank per task, defaults to 64", false, Number.class));
+        options.addOption(makeOption("l", "bands", "Approximate rankings with this many LSH bands, more bands find more similar characters", false, Number.class));
+        options.addOption(makeOption("w", "rows", "Rows per LSH band, defaults to 3. More rows find fewer candidates", false, Number.class));
+        return options;
+    }
+
+    private static Options makeMatrixOptions() {
+        Options options = new Options();
+        options.addOption(makeOption("m", "method", METHODS, true, String.class));
+        options.addOption(makeOption("d", "decomp", "Path to CJK decomposition", true, String.class));
+        options.addOption(makeOption("r", "radicals", "File with radicals to stop decomposition at", true, String.class));
+        options.addOption(makeOption("j", "jpn2chin", "Filename of Japanese to simplified Chinese mapping", true, String.class));
+        options.addOption(makeOption("e", "restrict", "Restrict characters to ones occurring in the specified file", false, String.class));
+        options.addOption(makeOption("b", "snapshot", "Binary snapshot to load the decomposition from, written if outdated", false, String.class));
+        options.addOption(makeOption("o", "output", "Filename of the matrix file", true, String.class));
+        options.addOption(makeOption("t", "threads", "How many threads to split the computation into, defaults to the number of cores", false, Number.class));
+        options.addOption("z", "quantize", false, "Store every score in 16 instead of 32 bit");
+        return options;
+    }
+
+    private static Options makeCompileOptions() {
+        Options options = new Options();
+        options.addOption(makeOption("m", "method", METHODS, true, String.class));
+        options.addOption(makeOption("d", "decomp", "Path to CJK decomposition", true, String.class));
+        options.addOption(makeOption("r", "radicals", "File with radicals to stop decomposition at", true, String.class));
         options.addOption(makeOption("j", "jpn2chin", "Filename of Japanese to simplified Chinese mapping", true, String.class));
         options.addOption(makeOption("e", "restrict", "Restrict characters to ones occurring in the specified file", false, String.class));
+        options.addOption(makeOption("o", "output", "Filename of the binary snapshot", true, String.class));
+        return options;
+    }
+
+    private static Options makeMergeOptions() {
+        Options options = new Options();
+        options.addOption(makeOption("m", "method", METHODS, true, String.class));
+        options.addOption(makeOption("o", "output", "Filename of the merged ranking file, followed by the shard files", true, String.class));
         return options;
     }
 
     private static void createSimilarityRanking(CommandLine args) throws ParseException {
         long start = System.currentTimeMillis();
 
-        final Map<String, FlatDecomp[]> decomp = Resources.flattenDecomposition(args);
-
         final String outputFname = args.getOptionValue("output");
         final int cutoff = ((Number)args.getParsedOptionValue("cutoff")).intValue();
-        final int nThreads = ((Number)args.getParsedOptionValue("threads")).intValue();
-        final String jpnToChinFname = args.getOptionValue("jpn2chin");
+        final Snapshot data = Snapshot.load(args);
+        final SimilarityEngine engine = approximateIfRequested(new SimilarityEngine(data), args, cutoff);
+        final int nThreads = args.hasOption("threads") ? ((Number)args.getParsedOptionValue("threads")).intValue()
+                : Runtime.getRuntime().availableProcessors();
+        final boolean symmetric = args.hasOption("symmetric");
+        final boolean resume = args.hasOption("resume");
+        final int[] shardSpec = parseShard(args);
+        final int shard = shardSpec[0];
+        final int nShards = shardSpec[1];
+        if (symmetric && (nShards > 1 || resume))
+            throw new ParseException("Symmetric rankings can't be sharded or resumed");
+        final String format = args.getOptionValue("format", "text");
+        if (!format.equals("text") && !format.equals("index"))
+            throw new ParseException("Format must be text or index");
+        if (format.equals("index") && (nShards > 1 || resume))
+            throw new ParseException("Index files can't be sharded or resumed");
+        if (format.equals("index") && args.hasOption("baseline"))
+            throw new ParseException("Only text ranking files can be updated from a baseline");
+        final boolean rectangular = args.hasOption("queries") || args.hasOption("candidates");
+        if (rectangular && (symmetric || args.hasOption("bands")))
+            throw new ParseException("Queries and candidates can't be combined with symmetric or approximate rankings");
+        if (args.hasOption("baseline"))
+            writeBaseline(data, args, resume);
+
+        final List<String> allChars = engine.characters();
+        final Set<String> queries = args.hasOption("queries") ? Resources.readFileCharSet(args.getOptionValue("queries")) : null;
+        final BitSet candidates = readCandidates(engine, args);
+        // characters of this shard that aren't in the output file yet
+        final Set<String> finishedChars = resume ? Resources.readRankedCharacters(outputFname) : new HashSet<>();
+        final List<Integer> rowList = new ArrayList<>();
+        for (int i = shard; i < allChars.size(); i += nShards) {
+            if (!finishedChars.contains(allChars.get(i)) && (queries == null || queries.contains(allChars.get(i))))
+                rowList.add(i);
+        }
+        final int[] rows = ArrayUtils.asArray(rowList.toArray(new Integer[0]));
+        if (resume)
+            System.out.println("Resuming with " + rows.length + " characters left");
 
-        final Map<String, String[]> jpnToChin = Resources.readJapaneseToSimplChinese(jpnToChinFname);
+        final TopK[] tops = symmetric ? new TopK[allChars.size()] : null;
+        if (symmetric) {
+            for (int i = 0; i < tops.length; i++)
+                tops[i] = new TopK(cutoff);
+        }
+        final AtomicInteger done = new AtomicInteger();
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        // on Ctrl-C let the running characters finish and write what has been computed so far
+        final Thread shutdownHook = new Thread() {
+            @Override
+            public void run() {
+                cancelled.set(true);
+                try {
+                    finished.await(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
 
-        final List<String> allChars = new ArrayList<>(decomp.keySet());
         try {
-            final BufferedWriter br = new BufferedWriter(new FileWriter(new File(outputFname)));
-            Thread[] threads = new Thread[nThreads];
-            final int itemsPerThread = allChars.size() / nThreads;
-            for (int iThread = 0; iThread < threads.length; iThread++) {
-                final int startIndex = iThread * itemsPerThread;
-                final int endIndex = iThread == threads.length - 1 ? allChars.size() : startIndex + itemsPerThread;
-                threads[iThread] = new Thread() {
+            final RankingWriter writer = format.equals("index") ? new SimilarityIndex.Writer(outputFname, allChars, cutoff)
+                    : new TextRankingWriter(outputFname, allChars, resume);
+            final ThreadLocal<Workspace> workspaces = ThreadLocal.withInitial(() -> new Workspace(engine.data.decomp, cutoff));
+
+            final ScheduledExecutorService reporter = Metrics.startReporting(rows.length, System.out);
+
+            // small tasks so that idle threads can steal work from ones stuck with expensive characters
+            ForkJoinPool pool = new ForkJoinPool(nThreads);
+            if (rectangular) {
+                final int[] blocks = new int[(rows.length + QUERY_BLOCK - 1) / QUERY_BLOCK];
+                for (int b = 0; b < blocks.length; b++)
+                    blocks[b] = b;
+                final ThreadLocal<TopK[]> blockTops = ThreadLocal.withInitial(() -> {
+                    TopK[] blockTop = new TopK[QUERY_BLOCK];
+                    for (int q = 0; q < QUERY_BLOCK; q++)
+                        blockTop[q] = new TopK(cutoff);
+                    return blockTop;
+                });
+                pool.invoke(new RankingTask(blocks, 0, blocks.length, b -> {
+                    if (cancelled.get())
+                        return;
+                    long blockStart = Metrics.start();
+                    final int from = b * QUERY_BLOCK;
+                    final int to = Math.min(rows.length, from + QUERY_BLOCK);
+                    TopK[] blockTop = blockTops.get();
+                    engine.rankTiled(rows, from, to, blockTop, workspaces.get(), candidates);
+                    for (int q = from; q < to; q++)
+                        writeRanking(writer, blockTop[q - from], rows[q]);
+                    // the queries of a block are ranked together, so each gets its share of the block's time
+                    Metrics.rows(blockStart, to - from);
+                    int count = done.addAndGet(to - from);
+                    if (count / CHECKPOINT_INTERVAL != (count - (to - from)) / CHECKPOINT_INTERVAL) {
+                        try {
+                            writer.checkpoint();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }));
+            } else {
+                pool.invoke(new RankingTask(rows, 0, rows.length, new RowAction() {
                     @Override
-                    public void run() {
-                        final float[] similarities = new float[allChars.size()];
-                        for (int i = startIndex; i < endIndex; i++) {
-                            computeSimilarityRanking(allChars, similarities, decomp, jpnToChin, cutoff, i, br);
-                            if ((i - startIndex) % 100 == 0)
-                                System.out.println(NumberFormat.getIntegerInstance().format(i - startIndex) + "/" + NumberFormat.getIntegerInstance().format(endIndex - startIndex));
+                    public void compute(int i) {
+                        if (cancelled.get())
+                            return;
+                        long rowStart = Metrics.start();
+                        Workspace ws = workspaces.get();
+                        if (symmetric)
+                            computeUpperTriangleRow(engine, tops, ws, i);
+                        else
+                            computeSimilarityRanking(engine, ws, i, writer);
+                        Metrics.row(rowStart);
+                        int count = done.incrementAndGet();
+                        // so that a restarted run can resume from here
+                        if (count % CHECKPOINT_INTERVAL == 0 && !symmetric) {
+                            try {
+                                writer.checkpoint();
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            }
                         }
-
                     }
-                };
+                }));
             }
+            pool.shutdown();
 
-            for (Thread thread : threads)
-                thread.start();
-
-            for (Thread thread : threads) {
-                try {
-                    thread.join();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+            // rows only become final once all pairs have been scored
+            if (symmetric && !cancelled.get()) {
+                for (int i = 0; i < tops.length; i++) {
+                    long sortStart = Metrics.start();
+                    tops[i].sort();
+                    Metrics.stop(Metrics.Phase.SORT, sortStart);
+                    writeRanking(writer, tops[i], i);
                 }
             }
 
-            br.close();
+            if (cancelled.get())
+                writer.abort();
+            else
+                writer.close();
+            Metrics.stopReporting(reporter, System.out);
+
+            // before the shutdown hook is released, the JVM may halt right after that
+            if (cancelled.get() && symmetric)
+                System.out.println("Cancelled after " + done.get() + " characters, symmetric rankings are only written when all are done");
+            else if (cancelled.get() && format.equals("index"))
+                System.out.println("Cancelled after " + done.get() + " characters, an index is only written when all are done");
+            else if (cancelled.get())
+                System.out.println("Cancelled after " + done.get() + " characters");
+            else
+                System.out.println("Done after " + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException | UncheckedIOException e) {
+            // failures of the pool threads arrive here as well
+            e.printStackTrace();
+            finished.countDown();
+            removeShutdownHook(shutdownHook);
+            System.exit(1);
+        } finally {
+            finished.countDown();
+            removeShutdownHook(shutdownHook);
+        }
+    }
+
+    /**
+     * @return Shard i and number of shards N given with --shard as i/N, 0 and 1 without it
+     */
+    private static int[] parseShard(CommandLine args) throws ParseException {
+        if (!args.hasOption("shard"))
+            return new int[]{0, 1};
+        String[] shardSpec = args.getOptionValue("shard").split("/");
+        int shard;
+        int nShards;
+        try {
+            shard = Integer.parseInt(shardSpec[0]);
+            nShards = Integer.parseInt(shardSpec[1]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new ParseException("Shard must be given as i/N");
+        }
+        if (shard < 0 || shard >= nShards)
+            throw new ParseException("Shard must be given as i/N with 0 <= i < N");
+        return new int[]{shard, nShards};
+    }
+
+    /**
+     * @return Indices of the characters in the file given with --candidates, null without it
+     */
+    private static BitSet readCandidates(SimilarityEngine engine, CommandLine args) {
+        if (!args.hasOption("candidates"))
+            return null;
+        BitSet candidates = new BitSet(engine.characters().size());
+        for (String c : Resources.readFileCharSet(args.getOptionValue("candidates"))) {
+            if (engine.contains(c))
+                candidates.set(engine.indexOf(c));
+        }
+        return candidates;
+    }
+
+    /**
+     * Writes the data a ranking file is computed from to the file given with --baseline, which update later compares
+     * the changed sources against. Unlike --snapshot it is never rewritten by other runs.
+     */
+    private static void writeBaseline(Snapshot data, CommandLine args, boolean resume) throws ParseException {
+        final String baselineFname = args.getOptionValue("baseline");
+        final long[] checksums = Snapshot.checksums(args);
+        try {
+            // the rankings already in a resumed file were computed from the existing baseline
+            if (resume && new File(baselineFname).exists() && Snapshot.read(baselineFname, checksums) == null)
+                throw new ParseException("The sources changed since " + baselineFname + " was written, resume with the same sources");
+            data.write(baselineFname, checksums);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return An approximate engine if --bands is given, the exact engine otherwise
+     */
+    private static SimilarityEngine approximateIfRequested(SimilarityEngine exact, CommandLine args, int k) throws ParseException {
+        if (!args.hasOption("bands"))
+            return exact;
+        int bands = ((Number)args.getParsedOptionValue("bands")).intValue();
+        int rows = args.hasOption("rows") ? ((Number)args.getParsedOptionValue("rows")).intValue() : 3;
+        if (bands <= 0 || rows <= 0)
+            throw new ParseException("Bands and rows must be positive");
+        SimilarityEngine approximate = exact.approximate(bands, rows);
+
+        if (args.hasOption("recall")) {
+            int samples = ((Number)args.getParsedOptionValue("recall")).intValue();
+            long start = System.nanoTime();
+            float recall = approximate.recall(exact, k, samples, 42);
+            long both = System.nanoTime() - start;
+            // time the approximate rankings alone, the recall measurement also computed the exact ones
+            start = System.nanoTime();
+            approximate.recall(approximate, k, samples, 42);
+            long approximateOnly = (System.nanoTime() - start) / 2;
+            System.out.println(String.format(Locale.ROOT, "Recall@%d with %d bands of %d rows: %.4f on %d characters, %.3f ms per character instead of %.3f",
+                    k, bands, rows, recall, samples, approximateOnly / 1e6 / samples, (both - approximateOnly) / 1e6 / samples));
+        }
+        return approximate;
+    }
+
+    private interface RowAction {
+        void compute(int i);
+    }
+
+    /**
+     * Splits a range of rows in halves until it's small enough to be computed by a single thread
+     */
+    private static class RankingTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int GRAIN = 16;
+
+        private final int[] rows;
+        private final int startIndex;
+        private final int endIndex;
+        private final RowAction action;
+
+        RankingTask(int[] rows, int startIndex, int endIndex, RowAction action) {
+            this.rows = rows;
+            this.startIndex = startIndex;
+            this.endIndex = endIndex;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (endIndex - startIndex <= GRAIN) {
+                for (int i = startIndex; i < endIndex; i++)
+                    action.compute(rows[i]);
+            } else {
+                int mid = (startIndex + endIndex) >>> 1;
+                invokeAll(new RankingTask(rows, startIndex, mid, action), new RankingTask(rows, mid, endIndex, action));
+            }
+        }
+    }
+
+    private static void serveSimilarityQueries(CommandLine args) throws ParseException {
+        final int port = args.hasOption("port") ? ((Number) args.getParsedOptionValue("port")).intValue() : 8080;
+        final int cutoff = args.hasOption("cutoff") ? ((Number) args.getParsedOptionValue("cutoff")).intValue() : 20;
+        final int nThreads = args.hasOption("threads") ? ((Number) args.getParsedOptionValue("threads")).intValue() : 0;
+        final int cacheSize = args.hasOption("cache") ? ((Number) args.getParsedOptionValue("cache")).intValue() : 10000;
+
+        QueryServer server = new QueryServer(approximateIfRequested(new SimilarityEngine(Snapshot.load(args)), args, cutoff), cutoff, cacheSize);
+        try {
+            server.start(port, nThreads);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        System.out.println("Listening on http://localhost:" + port);
+    }
+
+    /**
+     * Reads characters from stdin and writes their rankings to stdout as NDJSON until stdin is closed. Everything
+     * else that would go to stdout is printed to stderr instead.
+     */
+    private static void streamSimilarityQueries(CommandLine args) throws ParseException {
+        long start = System.currentTimeMillis();
+        final int cutoff = args.hasOption("cutoff") ? ((Number) args.getParsedOptionValue("cutoff")).intValue() : 20;
+        final int nThreads = args.hasOption("threads") ? ((Number) args.getParsedOptionValue("threads")).intValue()
+                : Runtime.getRuntime().availableProcessors();
+        final int batchSize = args.hasOption("batch") ? ((Number) args.getParsedOptionValue("batch")).intValue() : 64;
+        if (cutoff <= 0 || nThreads <= 0 || batchSize <= 0)
+            throw new ParseException("Cutoff, threads and batch size must be positive");
+
+        PrintStream stdout = System.out;
+        System.setOut(System.err);
+        QueryStream stream = new QueryStream(approximateIfRequested(new SimilarityEngine(Snapshot.load(args)), args, cutoff),
+                cutoff, batchSize, nThreads);
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(stdout, StandardCharsets.UTF_8));
+            stream.run(new InputStreamReader(System.in, StandardCharsets.UTF_8), out);
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        System.err.println("Answered " + stream.answered.get() + " characters after " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Writes the similarity of every pair of characters to a {@link SimilarityMatrix} file, computed in blocks of rows
+     */
+    private static void writeSimilarityMatrix(CommandLine args) throws ParseException {
+        long start = System.currentTimeMillis();
+
+        final String outputFname = args.getOptionValue("output");
+        final int nThreads = args.hasOption("threads") ? ((Number) args.getParsedOptionValue("threads")).intValue()
+                : Runtime.getRuntime().availableProcessors();
+        final SimilarityEngine engine = new SimilarityEngine(Snapshot.load(args));
+        final int n = engine.characters().size();
+
+        try {
+            final SimilarityMatrix.Writer writer = new SimilarityMatrix.Writer(outputFname, engine.characters(),
+                    engine.params, args.hasOption("quantize"));
+            System.out.println("Writing " + n + " characters, " + (writer.length() >> 20) + " MB");
+            final ThreadLocal<Workspace> workspaces = ThreadLocal.withInitial(() -> new Workspace(engine.data.decomp, 1));
+            final ThreadLocal<float[]> rows = ThreadLocal.withInitial(() -> new float[n]);
+            final int[] blocks = new int[(n + MATRIX_BLOCK - 1) / MATRIX_BLOCK];
+            for (int b = 0; b < blocks.length; b++)
+                blocks[b] = b;
+
+            final ScheduledExecutorService reporter = Metrics.startReporting(n, System.out);
+            ForkJoinPool pool = new ForkJoinPool(nThreads);
+            try {
+                // early rows are the longest, so blocks are small enough to be balanced by work stealing
+                pool.invoke(new RankingTask(blocks, 0, blocks.length, b -> {
+                    float[] similarities = rows.get();
+                    for (int i = b * MATRIX_BLOCK; i < Math.min(n, (b + 1) * MATRIX_BLOCK); i++) {
+                        long rowStart = Metrics.start();
+                        computeMatrixRow(engine, similarities, workspaces.get(), i);
+                        long writeStart = Metrics.start();
+                        try {
+                            writer.writeRow(i, similarities);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        Metrics.stop(Metrics.Phase.WRITE, writeStart);
+                        Metrics.row(rowStart);
+                    }
+                }));
+            } catch (UncheckedIOException e) {
+                pool.shutdownNow();
+                writer.abort();
+                throw e.getCause();
+            }
+            pool.shutdown();
+            writer.close();
+            Metrics.stopReporting(reporter, System.out);
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
@@ -174,171 +738,330 @@ public class Main {
         System.out.println("Done after " + (System.currentTimeMillis() - start) + " ms");
     }
 
-    private static void evaluateSimilarityRanking(CommandLine args) {
+    private static void compileSnapshot(CommandLine args) {
         long start = System.currentTimeMillis();
 
-        final String testcasesFname = args.getOptionValue("testcases");
-        final String jpnToChinFname = args.getOptionValue("jpn2chin");
+        final String outputFname = args.getOptionValue("output");
+        Snapshot snapshot = Snapshot.fromSources(args);
+        try {
+            snapshot.write(outputFname, Snapshot.checksums(args));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
 
-        final Map<String, FlatDecomp[]> decomp = Resources.flattenDecomposition(args);
-        final List<String[]> testcases = Resources.readTestcases(testcasesFname);
-        final List<String> allChars = new ArrayList<>(decomp.keySet());
-        final Map<String, String[]> jpnToChin = Resources.readJapaneseToSimplChinese(jpnToChinFname);
-
-        float totalScore = 0;
-        int scoreCount = 0;
-        int posSum = 0;
-        int posCount = 0;
-        int under500 = 0;
-        int under500Total = 0;
-
-        final float[] similarities = new float[allChars.size()];
-        for (int i = 0; i < testcases.size(); i++) {
-            String character = testcases.get(i)[0];
-            if (!decomp.containsKey(character)) {
-                System.out.println("Skipping " + character + " because it's not included in the decomp");
-                continue;
+        System.out.println("Compiled " + snapshot.allChars.size() + " characters after " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Updates a text ranking file created from the baseline given with --baseline to the current sources and then
+     * replaces the baseline, so that the next update starts from here
+     */
+    private static void updateSimilarityRanking(CommandLine args) throws ParseException {
+        long start = System.currentTimeMillis();
+
+        final String outputFname = args.getOptionValue("output");
+        final String baselineFname = args.getOptionValue("baseline");
+        final int cutoff = ((Number)args.getParsedOptionValue("cutoff")).intValue();
+        final int[] shardSpec = parseShard(args);
+        final int shard = shardSpec[0];
+        final int nShards = shardSpec[1];
+        final int nThreads = args.hasOption("threads") ? ((Number)args.getParsedOptionValue("threads")).intValue()
+                : Runtime.getRuntime().availableProcessors();
+
+        try {
+            Snapshot previous = Snapshot.read(baselineFname, null);
+            if (previous == null) {
+                System.err.println("Baseline " + baselineFname + " is missing or has a different version");
+                System.exit(1);
+                return;
             }
-            for (int j = 0; j < allChars.size(); j++) {
-                // don't want the character itself
-                if (!character.equals(allChars.get(j))) {
-                    similarities[j] = calculateCharSimilarity(character, allChars.get(j), decomp, jpnToChin);
-                } else {
-                    similarities[j] = 0;
+            Snapshot current = Snapshot.fromSources(args);
+            SimilarityEngine engine = new SimilarityEngine(current);
+            IncrementalUpdate update = new IncrementalUpdate(previous, engine, cutoff);
+            System.out.println(update.changedCharacters().size() + " characters changed");
+
+            // added characters only get a row if create would have ranked them in this file
+            BitSet rows = null;
+            if (args.hasOption("shard") || args.hasOption("queries")) {
+                Set<String> queries = args.hasOption("queries") ? Resources.readFileCharSet(args.getOptionValue("queries")) : null;
+                List<String> allChars = engine.characters();
+                rows = new BitSet(allChars.size());
+                for (int i = shard; i < allChars.size(); i += nShards) {
+                    if (queries == null || queries.contains(allChars.get(i)))
+                        rows.set(i);
                 }
             }
+            List<String> lines = update.update(Resources.readRankingLines(outputFname), rows, readCandidates(engine, args), nThreads);
+            // write next to the old file first so that it stays intact if this is interrupted
+            File tmp = new File(outputFname + ".tmp");
+            BufferedWriter br = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8);
+            for (String line : lines) {
+                br.write(line);
+                br.write("\n");
+            }
+            br.close();
+            Files.move(tmp.toPath(), Paths.get(outputFname), StandardCopyOption.REPLACE_EXISTING);
 
-            int[] similarSorted = ArrayUtils.argsort(similarities, false);
+            current.write(baselineFname, Snapshot.checksums(args));
+            System.out.println("Recomputed " + update.recomputed.get() + " and patched " + update.patched.get() + " of "
+                    + lines.size() + " rankings");
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
 
-            StringBuilder sb = new StringBuilder();
-            for (int pos = 0; pos < Math.min(20, similarSorted.length); pos++) {
-                sb.append(allChars.get(similarSorted[pos]) + " ");
-            }
+        System.out.println("Done after " + (System.currentTimeMillis() - start) + " ms");
+    }
 
-            // check how reference characters were ranked
-            List<Integer> positions = new ArrayList<>();
-            float score = 0;
-            for (int k = 1; k < testcases.get(i).length; k++) {
-                int rankedPos = -1;
-                for (int pos = 0; pos < similarSorted.length; pos++) {     // TODO could use map
-                    if (allChars.get(similarSorted[pos]).equals(testcases.get(i)[k])) {
-                        rankedPos = pos;
-                        posSum += pos;
-                        posCount++;
-                        break;
+    /**
+     * Combines the ranking files of several shards into one, keeping the first ranking of every character
+     */
+    private static void mergeSimilarityRankings(CommandLine args) {
+        final String outputFname = args.getOptionValue("output");
+        final List<String> shardFnames = args.getArgList();
+
+        Set<String> merged = new HashSet<>();
+        try {
+            final BufferedWriter br = Files.newBufferedWriter(Paths.get(outputFname), StandardCharsets.UTF_8);
+            for (String shardFname : shardFnames) {
+                int duplicates = 0;
+                for (String line : Resources.readRankingLines(shardFname)) {
+                    if (merged.add(Resources.rankedCharacter(line))) {
+                        br.write(line);
+                        br.write("\n");
+                    } else {
+                        duplicates++;
                     }
                 }
-                if (rankedPos == -1)
-                    rankedPos = 10000000;
+                if (duplicates > 0)
+                    System.out.println("Skipped " + duplicates + " characters in " + shardFname + " that were already merged");
+            }
+            br.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        System.out.println("Merged " + merged.size() + " characters from " + shardFnames.size() + " files");
+    }
 
-                if (rankedPos < 500)
-                    under500++;
-                under500Total++;
+    private static void evaluateSimilarityRanking(CommandLine args) throws ParseException {
+        long start = System.currentTimeMillis();
 
-                positions.add(rankedPos);
+        final String testcasesFname = args.getOptionValue("testcases");
+        final int nThreads = args.hasOption("threads") ? ((Number)args.getParsedOptionValue("threads")).intValue()
+                : Runtime.getRuntime().availableProcessors();
 
-                score += 1.0f / k * 1.0f / (rankedPos + 1);
-                scoreCount++;
-            }
-            totalScore += score;
+        final SimilarityEngine engine = new SimilarityEngine(Snapshot.load(args));
+        final List<String[]> testcases = Resources.readTestcases(testcasesFname);
+
+        TestcaseResult[] results = evaluateTestcases(Collections.singletonList(engine), testcases, nThreads)[0];
+        for (TestcaseResult result : results)
+            System.out.println(result.output);
+
+        EvaluationSummary summary = new EvaluationSummary(results);
+        System.out.println("Avg score: " + summary.avgScore);
+        System.out.println("Avg position: " + summary.avgPosition);
+        System.out.println("Percentage position < 500: " + summary.under500Percentage);
+        System.out.println("Done after " + (System.currentTimeMillis() - start) + " ms");
+    }
 
-            System.out.print("Character " + character + ": " + sb.toString() + ", Reference: ");
-            for (int k = 1; k < testcases.get(i).length; k++) {
-                System.out.print(testcases.get(i)[k] + " (" + positions.get(k - 1) + "), ");
+    /**
+     * Evaluates every combination of the radical sets and scoring parameters given on the command line. The
+     * decomposition is parsed once and flattened once per radical set, configurations only differing in their
+     * scoring parameters share the flattened data.
+     */
+    private static void sweepScoringParams(CommandLine args) throws ParseException {
+        long start = System.currentTimeMillis();
+
+        final String[] radicalFnames = args.getOptionValue("radicals").split(",");
+        final float[] variantScores = parseFloats(args, "variant", ScoringParams.DEFAULT.variantScore, false);
+        final float[] pairWeights = parseFloats(args, "pair-weight", ScoringParams.DEFAULT.pairWeight, true);
+        final float[] positionNorms = parseFloats(args, "position-norm", ScoringParams.DEFAULT.positionNorm, true);
+        final int nThreads = args.hasOption("threads") ? ((Number)args.getParsedOptionValue("threads")).intValue()
+                : Runtime.getRuntime().availableProcessors();
+
+        final List<String[]> testcases = Resources.readTestcases(args.getOptionValue("testcases"));
+        final Map<String, CjkDecomp> decomp = Resources.readCjkDecomp(args.getOptionValue("decomp"));
+        final VariantGraph variants = Resources.readJapaneseToSimplChinese(args.getOptionValue("jpn2chin"));
+
+        final List<SimilarityEngine> engines = new ArrayList<>();
+        final List<String> radicalNames = new ArrayList<>();
+        for (String radicalFname : radicalFnames) {
+            Set<String> radicals = Resources.readRadicals(radicalFname);
+            SimilarityEngine base = new SimilarityEngine(Snapshot.fromFlattened(Resources.flattenDecomposition(decomp, radicals, null), variants));
+            for (float variantScore : variantScores) {
+                for (float pairWeight : pairWeights) {
+                    for (float positionNorm : positionNorms) {
+                        engines.add(base.withParams(new ScoringParams(variantScore, pairWeight, positionNorm)));
+                        radicalNames.add(radicalFname);
+                    }
+                }
             }
-            System.out.println(" -> Score " + score);
         }
+        System.out.println("Evaluating " + engines.size() + " configurations on " + testcases.size() + " testcases");
+
+        TestcaseResult[][] results = evaluateTestcases(engines, testcases, nThreads);
+        final EvaluationSummary[] summaries = new EvaluationSummary[engines.size()];
+        Integer[] order = new Integer[engines.size()];
+        for (int c = 0; c < engines.size(); c++) {
+            summaries[c] = new EvaluationSummary(results[c]);
+            order[c] = c;
+        }
+        // best first, ties keep the order of the grid
+        Arrays.sort(order, (a, b) -> Float.compare(summaries[b].avgScore, summaries[a].avgScore));
 
-        System.out.println("Avg score: " + totalScore / scoreCount);
-        System.out.println("Avg position: " + (float) posSum / posCount);
-        System.out.println("Percentage position < 500: " + 100 * (float) under500 / under500Total);
+        System.out.println(String.format(Locale.ROOT, "%4s  %9s  %12s  %8s  %7s  %11s  %13s  %s",
+                "Rank", "Avg score", "Avg position", "% < 500", "Variant", "Pair weight", "Position norm", "Radicals"));
+        for (int r = 0; r < order.length; r++) {
+            EvaluationSummary summary = summaries[order[r]];
+            ScoringParams params = engines.get(order[r]).params;
+            System.out.println(String.format(Locale.ROOT, "%4d  %9.5f  %12.2f  %8.2f  %7.3f  %11.3f  %13.4f  %s",
+                    r + 1, summary.avgScore, summary.avgPosition, summary.under500Percentage,
+                    params.variantScore, params.pairWeight, params.positionNorm, radicalNames.get(order[r])));
+        }
         System.out.println("Done after " + (System.currentTimeMillis() - start) + " ms");
     }
 
+    /**
+     * @return Comma-separated values of the option or the default value if it isn't given
+     */
+    /**
+     * @param positive whether values that aren't greater than 0 are rejected
+     */
+    private static float[] parseFloats(CommandLine args, String option, float defaultValue, boolean positive) throws ParseException {
+        if (!args.hasOption(option))
+            return new float[]{defaultValue};
+        String[] values = args.getOptionValue(option).split(",");
+        float[] parsed = new float[values.length];
+        try {
+            for (int i = 0; i < values.length; i++)
+                parsed[i] = Float.parseFloat(values[i].trim());
+        } catch (NumberFormatException e) {
+            throw new ParseException(option + " must be a comma-separated list of numbers");
+        }
+        for (float value : parsed) {
+            if (positive && !(value > 0))
+                throw new ParseException(option + " must only contain positive numbers");
+        }
+        return parsed;
+    }
 
-    /***
+    /**
+     * Evaluates all testcases with every engine in parallel
      *
-     * @return Value between 0 (very dissimilar) and 1 (identical)
+     * @return Results indexed by engine and testcase, independent of the thread scheduling
      */
-    private static float calculateCharSimilarity(String c1, String c2, Map<String, FlatDecomp[]> decomp, Map<String, String[]> jpnToChin) {
-        if (c1.equals(c2))
-            return 1;
-
-        // if one is the simplified version of the other, return almost perfect match
-        if (jpnToChin.containsKey(c1)) {
-            assert(!jpnToChin.containsKey(c2));
-            for (String conv : jpnToChin.get(c1)) {
-                if (conv.equals(c2)) {
-                    return 0.99f;
-                }
-            }
-        } else if (jpnToChin.containsKey(c2)) {
-            assert(!jpnToChin.containsKey(c1));
-            for (String conv : jpnToChin.get(c2)) {
-                if (conv.equals(c1)) {
-                    return 0.99f;
-                }
+    private static TestcaseResult[][] evaluateTestcases(final List<SimilarityEngine> engines, final List<String[]> testcases, int nThreads) {
+        final int nTestcases = testcases.size();
+        final TestcaseResult[][] results = new TestcaseResult[engines.size()][nTestcases];
+        final ThreadLocal<float[]> similarities = ThreadLocal.withInitial(() -> new float[0]);
+        ForkJoinPool pool = new ForkJoinPool(nThreads);
+        pool.submit(() -> IntStream.range(0, engines.size() * nTestcases).parallel().forEach(task -> {
+            SimilarityEngine engine = engines.get(task / nTestcases);
+            int i = task % nTestcases;
+            // engines with different radical sets may have a different number of characters
+            if (similarities.get().length != engine.characters().size())
+                similarities.set(new float[engine.characters().size()]);
+            Workspace ws = engine.borrow();
+            try {
+                results[task / nTestcases][i] = evaluateTestcase(engine, testcases.get(i), similarities.get(), ws);
+            } finally {
+                engine.release(ws);
             }
-        }
-
-        // component overlap
-        float totalScore = 0;
-        FlatDecomp[] dc1 = decomp.get(c1);
-        FlatDecomp[] dc2 = decomp.get(c2);
+        })).join();
+        pool.shutdown();
+        return results;
+    }
 
-        int i = 0;
-        int j = 0;
+    /**
+     * Averages over the testcase results, summed in testcase order
+     */
+    private static class EvaluationSummary {
+        final float avgScore;
+        final float avgPosition;
+        final float under500Percentage;
 
-        while (i < dc1.length && j < dc2.length) {
-            if (dc1[i].comp.equals(dc2[j].comp)) {
-                String sameComp = dc1[i].comp;
-                final int startI = i;
-                final int startJ = j;
-                // additional occurrences of the same character in only one decomposition don't increase the score
-                while (i < dc1.length && dc1[i].comp.equals(sameComp)) {
-                    i++;
-                }
-                while (j < dc2.length && dc2[j].comp.equals(sameComp)) {
-                    j++;
-                }
+        EvaluationSummary(TestcaseResult[] results) {
+            float totalScore = 0;
+            int scoreCount = 0;
+            int posSum = 0;
+            int posCount = 0;
+            int under500 = 0;
+            int under500Total = 0;
 
-                final int occs1 = i - startI;
-                final int occs2 = j - startJ;
+            for (TestcaseResult result : results) {
+                if (result.positions == null)
+                    continue;
 
-                float[] pairSimilarities = new float[occs1 * occs2];
-                // match every occurrence from dc1 with dc2
-                for (int matchI = startI; matchI < i; matchI++) {
-                    for (int matchJ = startJ; matchJ < j; matchJ++) {
-                        pairSimilarities[(matchI - startI) * occs2 + (matchJ - startJ)] = calculatePositionSimilarity(dc1[matchI].centerHorizontal,
-                                dc1[matchI].centerVertical, dc2[matchJ].centerHorizontal, dc2[matchJ].centerVertical);
+                for (int rankedPos : result.positions) {
+                    if (rankedPos != UNRANKED) {
+                        posSum += rankedPos;
+                        posCount++;
                     }
+                    if (rankedPos < 500)
+                        under500++;
+                    under500Total++;
+                    scoreCount++;
                 }
-                Arrays.sort(pairSimilarities);
-                // take the K top probabilities so that every component can only be matched once
-                final int K = Math.min(occs1, occs2);
-                for (int k = pairSimilarities.length - 1; k >= pairSimilarities.length - K; k--) {
-                    totalScore += 2 * pairSimilarities[k];
-                }
-
-            } else if (dc1[i].comp.compareTo(dc2[j].comp) < 0) {  // advance pointer to smaller component
-                i++;
-            } else {
-                j++;
+                totalScore += result.score;
             }
+
+            avgScore = totalScore / scoreCount;
+            avgPosition = (float) posSum / posCount;
+            under500Percentage = 100 * (float) under500 / under500Total;
         }
+    }
 
-        totalScore /= dc1.length + dc2.length;
+    private static class TestcaseResult {
+        final String output;
+        // position of each reference character, null if the testcase was skipped
+        final int[] positions;
+        final float score;
 
-        return totalScore;
+        TestcaseResult(String output, int[] positions, float score) {
+            this.output = output;
+            this.positions = positions;
+            this.score = score;
+        }
     }
 
-    private static float calculatePositionSimilarity(float centerH1, float centerV1, float centerH2, float centerV2) {
-        float hDist = Math.abs(centerH1 - centerH2);
-        float vDist = Math.abs(centerV1 - centerV2);
-        // euclidean distance
-        float dist = (float) Math.sqrt(hDist * hDist + vDist * vDist);
-        // normalize so that dist <= 1
-        dist /= (float) Math.sqrt(2);
-        return 1 - dist;
+    /**
+     * Ranks the reference characters of a testcase, the first entry is the character and the rest its references
+     * from most to least similar
+     */
+    private static TestcaseResult evaluateTestcase(SimilarityEngine engine, String[] testcase, float[] similarities, Workspace ws) {
+        final List<String> allChars = engine.characters();
+        String character = testcase[0];
+        if (!engine.contains(character))
+            return new TestcaseResult("Skipping " + character + " because it's not included in the decomp", null, 0);
+        engine.scoreAll(engine.indexOf(character), similarities, ws);
+
+        int[] similarSorted = ArrayUtils.topK(similarities, 20);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("Character ").append(character).append(": ");
+        for (int pos = 0; pos < similarSorted.length; pos++) {
+            sb.append(allChars.get(similarSorted[pos]) + " ");
+        }
+        sb.append(", Reference: ");
+
+        // check how reference characters were ranked
+        int[] positions = new int[testcase.length - 1];
+        float score = 0;
+        for (int k = 1; k < testcase.length; k++) {
+            int rankedPos = -1;
+            if (engine.contains(testcase[k]))
+                rankedPos = ArrayUtils.rank(similarities, engine.indexOf(testcase[k]));
+            if (rankedPos == -1)
+                rankedPos = UNRANKED;
+            positions[k - 1] = rankedPos;
+
+            score += 1.0f / k * 1.0f / (rankedPos + 1);
+            sb.append(testcase[k]).append(" (").append(rankedPos).append("), ");
+        }
+        sb.append(" -> Score ").append(score);
+        return new TestcaseResult(sb.toString(), positions, score);
     }
 }
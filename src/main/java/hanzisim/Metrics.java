@@ -0,0 +1,284 @@
+package hanzisim;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, phase timers and a row latency histogram for the hot paths. Updates go to striped {@link LongAdder}s so
+ * that threads don't contend on them. The values are printed as JSON lines during create and exposed through JMX as
+ * hanzisim:type=Metrics.
+ * <p>
+ * Turned off with -Dhanzisim.metrics=false. Since the switch is a static final, the JIT removes the instrumentation
+ * entirely in that case. -Dhanzisim.metrics.interval sets the seconds between two JSON lines (default 10).
+ */
+public class Metrics implements MetricsMBean {
+    public static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("hanzisim.metrics"));
+    private static final long INTERVAL = Long.getLong("hanzisim.metrics.interval", 10);
+
+    public enum Phase {
+        PARSE, FLATTEN, SCORE, SORT, WRITE
+    }
+
+    // bucket b counts rows that took [2^b, 2^(b+1)) microseconds, bucket 0 also those below 1 microsecond
+    private static final int BUCKETS = 40;
+
+    static final Metrics INSTANCE = new Metrics();
+
+    private final LongAdder pairsScored = new LongAdder();
+    private final LongAdder zeroPairs = new LongAdder();
+    private final LongAdder prunedPairs = new LongAdder();
+    private final LongAdder rowsDone = new LongAdder();
+    private final LongAdder writeWaitNanos = new LongAdder();
+    private final LongAdder[] phaseNanos = new LongAdder[Phase.values().length];
+    private final LongAdder[] latencyBuckets = new LongAdder[BUCKETS];
+    private volatile long rowsTotal;
+    private volatile long startNanos = System.nanoTime();
+
+    private Metrics() {
+        for (int p = 0; p < phaseNanos.length; p++)
+            phaseNanos[p] = new LongAdder();
+        for (int b = 0; b < BUCKETS; b++)
+            latencyBuckets[b] = new LongAdder();
+    }
+
+    /**
+     * @return Start time to pass to {@link #stop}, 0 if metrics are off
+     */
+    static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    static void stop(Phase phase, long start) {
+        if (ENABLED)
+            INSTANCE.phaseNanos[phase.ordinal()].add(System.nanoTime() - start);
+    }
+
+    /**
+     * Records the time a thread waited for the lock of the output file
+     */
+    static void writeWait(long start) {
+        if (ENABLED)
+            INSTANCE.writeWaitNanos.add(System.nanoTime() - start);
+    }
+
+    /**
+     * @param scored number of pairs scored for a row
+     * @param zero   how many of them had similarity 0
+     */
+    static void pairs(int scored, int zero) {
+        if (ENABLED) {
+            INSTANCE.pairsScored.add(scored);
+            INSTANCE.zeroPairs.add(zero);
+        }
+    }
+
+    /**
+     * @param pruned number of candidates of a row that were skipped since they couldn't enter the ranking
+     */
+    static void pruned(int pruned) {
+        if (ENABLED)
+            INSTANCE.prunedPairs.add(pruned);
+    }
+
+    /**
+     * Records a finished row of the ranking
+     */
+    static void row(long start) {
+        rows(start, 1);
+    }
+
+    /**
+     * Records count rows that were computed together since start, each with an equal share of the time
+     */
+    static void rows(long start, int count) {
+        if (ENABLED) {
+            long micros = (System.nanoTime() - start) / 1000 / count;
+            int bucket = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(Math.max(1, micros)));
+            INSTANCE.latencyBuckets[bucket].add(count);
+            INSTANCE.rowsDone.add(count);
+        }
+    }
+
+    /**
+     * Registers the MBean, does nothing if metrics are off
+     */
+    static void register() {
+        if (!ENABLED)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new javax.management.ObjectName("hanzisim:type=Metrics"));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Prints a JSON line to out every interval until the returned executor is shut down
+     *
+     * @param total number of rows that will be computed
+     * @return null if metrics are off
+     */
+    static ScheduledExecutorService startReporting(long total, final PrintStream out) {
+        if (!ENABLED)
+            return null;
+        INSTANCE.rowsTotal = total;
+        INSTANCE.startNanos = System.nanoTime();
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> out.println(INSTANCE.toJson("progress")), INTERVAL, INTERVAL, TimeUnit.SECONDS);
+        return reporter;
+    }
+
+    static void stopReporting(ScheduledExecutorService reporter, PrintStream out) {
+        if (reporter == null)
+            return;
+        reporter.shutdownNow();
+        out.println(INSTANCE.toJson("done"));
+    }
+
+    String toJson(String event) {
+        StringBuilder sb = new StringBuilder("{\"event\":");
+        Json.appendString(sb, event);
+        sb.append(",\"done\":").append(getRowsDone())
+                .append(",\"total\":").append(getRowsTotal())
+                .append(",\"elapsedSec\":").append(elapsedNanos() / 1_000_000_000L)
+                .append(",\"rowsPerSec\":").append(Math.round(getRowsPerSecond()))
+                .append(",\"etaSec\":").append(getEtaSeconds())
+                .append(",\"pairs\":").append(getPairsScored())
+                .append(",\"pairsPerSec\":").append(Math.round(getPairsPerSecond()))
+                .append(",\"zeroPairs\":").append(getZeroPairs())
+                .append(",\"prunedPairs\":").append(getPrunedPairs())
+                .append(",\"phaseMs\":{");
+        for (Phase phase : Phase.values()) {
+            if (phase.ordinal() > 0)
+                sb.append(',');
+            sb.append('"').append(phase.name().toLowerCase()).append("\":").append(phaseMillis(phase));
+        }
+        sb.append("},\"writeWaitMs\":").append(getWriteWaitMillis())
+                .append(",\"rowLatencyUs\":{\"p50\":").append(percentileMicros(0.5))
+                .append(",\"p90\":").append(percentileMicros(0.9))
+                .append(",\"p99\":").append(percentileMicros(0.99))
+                .append(",\"max\":").append(percentileMicros(1))
+                .append("}}");
+        return sb.toString();
+    }
+
+    private long elapsedNanos() {
+        return Math.max(1, System.nanoTime() - startNanos);
+    }
+
+    private long phaseMillis(Phase phase) {
+        return phaseNanos[phase.ordinal()].sum() / 1_000_000;
+    }
+
+    /**
+     * @return Upper bound of the histogram bucket containing the percentile, 0 if no rows were recorded
+     */
+    private long percentileMicros(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            counts[b] = latencyBuckets[b].sum();
+            total += counts[b];
+        }
+        if (total == 0)
+            return 0;
+        long target = (long) Math.ceil(percentile * total);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts[b];
+            if (counts[b] > 0 && seen >= target)
+                return 1L << (b + 1);
+        }
+        return 1L << BUCKETS;
+    }
+
+    @Override
+    public long getRowsDone() {
+        return rowsDone.sum();
+    }
+
+    @Override
+    public long getRowsTotal() {
+        return rowsTotal;
+    }
+
+    @Override
+    public double getRowsPerSecond() {
+        return getRowsDone() * 1e9 / elapsedNanos();
+    }
+
+    @Override
+    public long getEtaSeconds() {
+        double rate = getRowsPerSecond();
+        long left = getRowsTotal() - getRowsDone();
+        return rate > 0 && left > 0 ? Math.round(left / rate) : 0;
+    }
+
+    @Override
+    public long getPairsScored() {
+        return pairsScored.sum();
+    }
+
+    @Override
+    public double getPairsPerSecond() {
+        return getPairsScored() * 1e9 / elapsedNanos();
+    }
+
+    @Override
+    public long getZeroPairs() {
+        return zeroPairs.sum();
+    }
+
+    @Override
+    public long getPrunedPairs() {
+        return prunedPairs.sum();
+    }
+
+    @Override
+    public long getParseMillis() {
+        return phaseMillis(Phase.PARSE);
+    }
+
+    @Override
+    public long getFlattenMillis() {
+        return phaseMillis(Phase.FLATTEN);
+    }
+
+    @Override
+    public long getScoreMillis() {
+        return phaseMillis(Phase.SCORE);
+    }
+
+    @Override
+    public long getSortMillis() {
+        return phaseMillis(Phase.SORT);
+    }
+
+    @Override
+    public long getWriteMillis() {
+        return phaseMillis(Phase.WRITE);
+    }
+
+    @Override
+    public long getWriteWaitMillis() {
+        return writeWaitNanos.sum() / 1_000_000;
+    }
+
+    @Override
+    public long getRowLatencyP50Micros() {
+        return percentileMicros(0.5);
+    }
+
+    @Override
+    public long getRowLatencyP99Micros() {
+        return percentileMicros(0.99);
+    }
+}
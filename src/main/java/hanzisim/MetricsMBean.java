@@ -0,0 +1,47 @@
+package hanzisim;
+
+/**
+ * JMX view of {@link Metrics}. Times are summed over all threads.
+ */
+public interface MetricsMBean {
+    long getRowsDone();
+
+    long getRowsTotal();
+
+    double getRowsPerSecond();
+
+    long getEtaSeconds();
+
+    long getPairsScored();
+
+    double getPairsPerSecond();
+
+    /**
+     * @return Number of scored pairs with similarity 0
+     */
+    long getZeroPairs();
+
+    /**
+     * @return Number of candidates skipped since their upper bound was below the ranking
+     */
+    long getPrunedPairs();
+
+    long getParseMillis();
+
+    long getFlattenMillis();
+
+    long getScoreMillis();
+
+    long getSortMillis();
+
+    long getWriteMillis();
+
+    /**
+     * @return Time threads spent waiting for the lock of the output file
+     */
+    long getWriteWaitMillis();
+
+    long getRowLatencyP50Micros();
+
+    long getRowLatencyP99Micros();
+}
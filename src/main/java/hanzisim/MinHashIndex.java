@@ -0,0 +1,103 @@
+package hanzisim;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Approximate candidates by locality-sensitive hashing. Every character gets a MinHash signature over the multiset of
+ * its components (the n-th occurrence of a component counts as a separate element). The signature is cut into bands
+ * of a few rows each, and characters that agree on all rows of at least one band are candidates of each other.
+ * Characters with a Jaccard similarity s are found with probability 1 - (1 - s^rows)^bands, so more bands or fewer
+ * rows per band increase the recall at the cost of more candidates to score.
+ * <p>
+ * Variants are always candidates since they are ranked near the top without necessarily sharing components.
+ */
+public class MinHashIndex implements CandidateSource {
+    // band keys are truncated to the upper bits to pack them with the character index into a single sortable long,
+    // characters only colliding in the truncated key become unnecessary but harmless candidates
+    private static final int INDEX_BITS = 24;
+    private static final long KEY_MASK = -1L << INDEX_BITS;
+
+    private final ComponentIndex index;
+    private final int bands;
+    private final int rows;
+    // per band the keys of all characters with their index in the low bits, sorted
+    private final long[][] bandEntries;
+    // per character the key of every band
+    private final long[] keys;
+
+    public MinHashIndex(ComponentIndex index, PackedDecomps decomp, final int bands, final int rows) {
+        if (decomp.size() >= 1 << INDEX_BITS)
+            throw new IllegalArgumentException("Too many characters for the MinHash index");
+        this.index = index;
+        this.bands = bands;
+        this.rows = rows;
+
+        final int n = decomp.size();
+        keys = new long[n * bands];
+        IntStream.range(0, n).parallel().forEach(i -> {
+            long[] signature = new long[bands * rows];
+            Arrays.fill(signature, Long.MAX_VALUE);
+            for (int k = decomp.offsets[i]; k < decomp.offsets[i + 1]; k++) {
+                int occurrence = 0;
+                while (k - occurrence > decomp.offsets[i] && decomp.comps[k - occurrence - 1] == decomp.comps[k])
+                    occurrence++;
+                long element = ((long) decomp.comps[k] << 8) | Math.min(occurrence, 255);
+                for (int h = 0; h < signature.length; h++)
+                    signature[h] = Math.min(signature[h], ArrayUtils.mix(element * 0x9E3779B97F4A7C15L + h));
+            }
+            for (int b = 0; b < bands; b++) {
+                long key = b;
+                for (int r = 0; r < rows; r++)
+                    key = ArrayUtils.mix(key * 31 + signature[b * rows + r]);
+                keys[i * bands + b] = key & KEY_MASK;
+            }
+        });
+
+        bandEntries = new long[bands][n];
+        IntStream.range(0, bands).parallel().forEach(b -> {
+            for (int i = 0; i < n; i++)
+                bandEntries[b][i] = keys[i * bands + b] | i;
+            Arrays.sort(bandEntries[b]);
+        });
+    }
+
+    public int bands() {
+        return bands;
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    /**
+     * Writes the characters sharing a band with the query character and its variants into candidates
+     */
+    @Override
+    public int collectCandidates(int query, int[] stamps, int stamp, int[] candidates) {
+        int count = 0;
+        stamps[query] = stamp;
+        for (int b = 0; b < bands; b++) {
+            long[] entries = bandEntries[b];
+            long key = keys[query * bands + b];
+            // first entry with this key, its index bits are 0 at the earliest
+            int pos = Arrays.binarySearch(entries, key);
+            if (pos < 0)
+                pos = -pos - 1;
+            for (; pos < entries.length && (entries[pos] & KEY_MASK) == key; pos++) {
+                int j = (int) (entries[pos] & ~KEY_MASK);
+                if (stamps[j] != stamp) {
+                    stamps[j] = stamp;
+                    candidates[count++] = j;
+                }
+            }
+        }
+        for (int j : index.variants(query)) {
+            if (stamps[j] != stamp) {
+                stamps[j] = stamp;
+                candidates[count++] = j;
+            }
+        }
+        return count;
+    }
+}
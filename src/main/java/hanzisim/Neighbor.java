@@ -0,0 +1,19 @@
+package hanzisim;
+
+/**
+ * A character in the ranking of another one together with their similarity
+ */
+public class Neighbor {
+    public final String character;
+    public final float score;
+
+    public Neighbor(String character, float score) {
+        this.character = character;
+        this.score = score;
+    }
+
+    @Override
+    public String toString() {
+        return character + " (" + score + ")";
+    }
+}
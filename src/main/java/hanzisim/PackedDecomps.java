@@ -0,0 +1,241 @@
+package hanzisim;
+
+import java.util.*;
+
+/**
+ * Flattened decompositions of all characters packed into flat arrays. Components are interned to dense ids which are
+ * assigned in the natural order of the component strings, so every character's components stay sorted the same way
+ * as in {@link Resources#flattenDecomposition}.
+ * Character i owns the entries [offsets[i], offsets[i + 1]) of comps, centerHorizontal and centerVertical.
+ */
+public class PackedDecomps {
+    // boxes are only ever split into halves and quarters, so all centers lie on a dyadic grid with this many steps
+    // per side. The data only needs 128, centers of more deeply nested components are rounded to the nearest point.
+    static final int GRID = 256;
+    // side length of the position similarity table, indexed by the horizontal and vertical distance in grid steps
+    static final int TABLE_SIZE = GRID + 1;
+
+    final String[] components;
+    final int[] offsets;
+    final int[] comps;
+    final float[] centerHorizontal;
+    final float[] centerVertical;
+    // centers in grid steps, used to look up position similarities
+    final int[] gridHorizontal;
+    final int[] gridVertical;
+    // highest number of times the same component occurs in a single character
+    final int maxRepeats;
+    // length of the longest decomposition
+    final int maxLength;
+
+    public PackedDecomps(List<String> allChars, Map<String, FlatDecomp[]> decomp) {
+        SortedSet<String> distinct = new TreeSet<>();
+        int total = 0;
+        for (String c : allChars) {
+            FlatDecomp[] dc = decomp.get(c);
+            for (FlatDecomp fd : dc)
+                distinct.add(fd.comp);
+            total += dc.length;
+        }
+        components = distinct.toArray(new String[0]);
+        Map<String, Integer> ids = new HashMap<>();
+        for (int id = 0; id < components.length; id++)
+            ids.put(components[id], id);
+
+        offsets = new int[allChars.size() + 1];
+        comps = new int[total];
+        centerHorizontal = new float[total];
+        centerVertical = new float[total];
+        int pos = 0;
+        for (int i = 0; i < allChars.size(); i++) {
+            offsets[i] = pos;
+            for (FlatDecomp fd : decomp.get(allChars.get(i))) {
+                comps[pos] = ids.get(fd.comp);
+                centerHorizontal[pos] = quantize(fd.centerHorizontal);
+                centerVertical[pos] = quantize(fd.centerVertical);
+                pos++;
+            }
+        }
+        offsets[allChars.size()] = pos;
+        maxRepeats = maxRepeats(offsets, comps);
+        maxLength = maxLength(offsets);
+        gridHorizontal = toGrid(centerHorizontal);
+        gridVertical = toGrid(centerVertical);
+    }
+
+    PackedDecomps(String[] components, int[] offsets, int[] comps, float[] centerHorizontal, float[] centerVertical) {
+        this.components = components;
+        this.offsets = offsets;
+        this.comps = comps;
+        this.centerHorizontal = centerHorizontal;
+        this.centerVertical = centerVertical;
+        maxRepeats = maxRepeats(offsets, comps);
+        maxLength = maxLength(offsets);
+        gridHorizontal = toGrid(centerHorizontal);
+        gridVertical = toGrid(centerVertical);
+    }
+
+    /**
+     * @return The nearest point of the grid, the center itself if it already lies on it
+     */
+    static float quantize(float center) {
+        return Math.round(center * GRID) / (float) GRID;
+    }
+
+    private static int[] toGrid(float[] centers) {
+        int[] grid = new int[centers.length];
+        for (int i = 0; i < centers.length; i++)
+            grid[i] = Math.round(centers[i] * GRID);
+        return grid;
+    }
+
+    /**
+     * Position similarities of all distances between grid points, entry dh * TABLE_SIZE + dv holds the similarity of
+     * two centers that are dh steps apart horizontally and dv steps vertically. Since distances on the grid are exact
+     * in floating point, every entry is exactly what {@link #calculatePositionSimilarity} computes for them.
+     */
+    static float[] positionTable(float norm) {
+        float[] table = new float[TABLE_SIZE * TABLE_SIZE];
+        for (int dh = 0; dh < TABLE_SIZE; dh++) {
+            for (int dv = 0; dv < TABLE_SIZE; dv++)
+                table[dh * TABLE_SIZE + dv] = calculatePositionSimilarity(0, 0, dh / (float) GRID, dv / (float) GRID, norm);
+        }
+        return table;
+    }
+
+    private static int maxLength(int[] offsets) {
+        int maxLength = 0;
+        for (int i = 0; i < offsets.length - 1; i++)
+            maxLength = Math.max(maxLength, offsets[i + 1] - offsets[i]);
+        return maxLength;
+    }
+
+    private static int maxRepeats(int[] offsets, int[] comps) {
+        int maxRepeats = 1;
+        for (int i = 0; i < offsets.length - 1; i++) {
+            int repeats = 0;
+            for (int pos = offsets[i]; pos < offsets[i + 1]; pos++) {
+                repeats = pos > offsets[i] && comps[pos] == comps[pos - 1] ? repeats + 1 : 1;
+                maxRepeats = Math.max(maxRepeats, repeats);
+            }
+        }
+        return maxRepeats;
+    }
+
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    public int length(int i) {
+        return offsets[i + 1] - offsets[i];
+    }
+
+    /**
+     * @return Whether character i has the same flattened decomposition as character j of other
+     */
+    public boolean sameDecomposition(int i, PackedDecomps other, int j) {
+        if (length(i) != other.length(j))
+            return false;
+        for (int p = offsets[i], q = other.offsets[j]; p < offsets[i + 1]; p++, q++) {
+            if (!components[comps[p]].equals(other.components[other.comps[q]])
+                    || centerHorizontal[p] != other.centerHorizontal[q] || centerVertical[p] != other.centerVertical[q])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return Scratch buffer for {@link #componentSimilarity}, one is needed per thread
+     */
+    public float[] newScratch() {
+        return new float[maxRepeats * maxRepeats];
+    }
+
+    /***
+     * Similarity based on the overlap of the components of two characters, taking the position of matched components
+     * into account. Doesn't allocate.
+     *
+     * @param scratch buffer obtained from {@link #newScratch()} that is not used by another thread concurrently
+     * @return Value between 0 (no shared components) and 1 (same components at the same positions)
+     */
+    public float componentSimilarity(int c1, int c2, float[] scratch) {
+        return componentSimilarity(c1, c2, scratch, ScoringParams.DEFAULT);
+    }
+
+    public float componentSimilarity(int c1, int c2, float[] scratch, ScoringParams params) {
+        final float pairWeight = params.pairWeight;
+        final float[] table = params.positionTable;
+        final int[] comps = this.comps;
+        final int[] gridH = gridHorizontal;
+        final int[] gridV = gridVertical;
+        float totalScore = 0;
+        final int end1 = offsets[c1 + 1];
+        final int end2 = offsets[c2 + 1];
+        int i = offsets[c1];
+        int j = offsets[c2];
+
+        while (i < end1 && j < end2) {
+            final int comp1 = comps[i];
+            final int comp2 = comps[j];
+            if (comp1 == comp2) {
+                final int startI = i;
+                final int startJ = j;
+                // additional occurrences of the same character in only one decomposition don't increase the score
+                while (i < end1 && comps[i] == comp1) {
+                    i++;
+                }
+                while (j < end2 && comps[j] == comp1) {
+                    j++;
+                }
+
+                final int occs1 = i - startI;
+                final int occs2 = j - startJ;
+
+                if (occs1 == 1 && occs2 == 1) {
+                    totalScore += pairWeight * table[Math.abs(gridH[startI] - gridH[startJ]) * TABLE_SIZE
+                            + Math.abs(gridV[startI] - gridV[startJ])];
+                    continue;
+                }
+
+                final int n = occs1 * occs2;
+                // match every occurrence from c1 with c2
+                for (int matchI = startI; matchI < i; matchI++) {
+                    final int h = gridH[matchI];
+                    final int v = gridV[matchI];
+                    final int row = (matchI - startI) * occs2 - startJ;
+                    for (int matchJ = startJ; matchJ < j; matchJ++)
+                        scratch[row + matchJ] = table[Math.abs(h - gridH[matchJ]) * TABLE_SIZE + Math.abs(v - gridV[matchJ])];
+                }
+                Arrays.sort(scratch, 0, n);
+                // take the K top probabilities so that every component can only be matched once
+                final int K = Math.min(occs1, occs2);
+                for (int k = n - 1; k >= n - K; k--) {
+                    totalScore += pairWeight * scratch[k];
+                }
+            } else if (comp1 < comp2) {  // advance pointer to smaller component
+                i++;
+            } else {
+                j++;
+            }
+        }
+
+        totalScore /= length(c1) + length(c2);
+
+        return totalScore;
+    }
+
+    static float calculatePositionSimilarity(float centerH1, float centerV1, float centerH2, float centerV2) {
+        return calculatePositionSimilarity(centerH1, centerV1, centerH2, centerV2, ScoringParams.DEFAULT.positionNorm);
+    }
+
+    static float calculatePositionSimilarity(float centerH1, float centerV1, float centerH2, float centerV2, float norm) {
+        float hDist = Math.abs(centerH1 - centerH2);
+        float vDist = Math.abs(centerV1 - centerV2);
+        // euclidean distance
+        float dist = (float) Math.sqrt(hDist * hDist + vDist * vDist);
+        // normalize so that dist <= 1 with the default norm of sqrt(2)
+        dist /= norm;
+        // smaller norms reach 0 before the largest distance, further apart is just as dissimilar
+        return Math.max(0, 1 - dist);
+    }
+}
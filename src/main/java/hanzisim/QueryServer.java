@@ -0,0 +1,197 @@
+package hanzisim;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Answers similarity queries over HTTP on localhost, computing rankings on demand from decompositions loaded once.
+ * <ul>
+ * <li>GET /similar?char=X&amp;k=20&amp;restrict=ABC returns the k characters most similar to X, optionally only
+ * considering the characters in restrict</li>
+ * <li>GET /batch?chars=XYZ&amp;k=20&amp;restrict=ABC (or POST /batch with the characters as body) returns the rankings
+ * of all characters</li>
+ * </ul>
+ * Computed rankings are kept in a bounded LRU cache.
+ */
+public class QueryServer {
+    // bytes of a POST body that are read at most, enough for every character there is
+    private static final int MAX_BODY = 1 << 20;
+
+    private final SimilarityEngine engine;
+    private final int defaultK;
+    private final Map<String, String> cache;
+
+    public QueryServer(SimilarityEngine engine, int defaultK, final int cacheSize) {
+        this.engine = engine;
+        this.defaultK = defaultK;
+        cache = Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > cacheSize;
+            }
+        });
+    }
+
+    /**
+     * Starts serving on the loopback interface
+     *
+     * @param nThreads number of worker threads, if 0 a virtual thread is used per request where available
+     */
+    public HttpServer start(int port, int nThreads) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/similar", this::handleSimilar);
+        server.createContext("/batch", this::handleBatch);
+        server.setExecutor(nThreads > 0 ? Executors.newFixedThreadPool(nThreads) : newVirtualThreadExecutor());
+        server.start();
+        return server;
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            // only available on Java 21+
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    private void handleSimilar(HttpExchange exchange) throws IOException {
+        try {
+            Map<String, String> params = queryParams(exchange);
+            String character = params.get("char");
+            if (character == null || (character.codePointCount(0, character.length()) != 1 && !engine.contains(character))) {
+                respond(exchange, 400, "{\"error\":\"char must be a single character\"}");
+                return;
+            }
+            StringBuilder sb = new StringBuilder();
+            boolean found = appendRanking(sb, character, k(params), params.get("restrict"));
+            respond(exchange, found ? 200 : 404, sb.toString());
+        } catch (NumberFormatException e) {
+            respond(exchange, 400, "{\"error\":\"k must be a positive number\"}");
+        } catch (IllegalArgumentException e) {
+            // URLDecoder on a broken escape
+            respond(exchange, 400, "{\"error\":\"malformed query\"}");
+        }
+    }
+
+    private void handleBatch(HttpExchange exchange) throws IOException {
+        try {
+            Map<String, String> params = queryParams(exchange);
+            String chars = params.get("chars");
+            if ("POST".equals(exchange.getRequestMethod())) {
+                byte[] body = exchange.getRequestBody().readNBytes(MAX_BODY + 1);
+                if (body.length > MAX_BODY) {
+                    respond(exchange, 413, "{\"error\":\"body is larger than " + MAX_BODY + " bytes\"}");
+                    return;
+                }
+                chars = new String(body, StandardCharsets.UTF_8);
+            }
+            if (chars == null) {
+                respond(exchange, 400, "{\"error\":\"chars are missing\"}");
+                return;
+            }
+            int k = k(params);
+            String restrict = params.get("restrict");
+
+            StringBuilder sb = new StringBuilder("{\"results\":[");
+            boolean first = true;
+            for (int i = 0; i < chars.length(); i += Character.charCount(chars.codePointAt(i))) {
+                if (Character.isWhitespace(chars.codePointAt(i)))
+                    continue;
+                if (!first)
+                    sb.append(',');
+                first = false;
+                appendRanking(sb, new String(Character.toChars(chars.codePointAt(i))), k, restrict);
+            }
+            sb.append("]}");
+            respond(exchange, 200, sb.toString());
+        } catch (NumberFormatException e) {
+            respond(exchange, 400, "{\"error\":\"k must be a positive number\"}");
+        } catch (IllegalArgumentException e) {
+            // URLDecoder on a broken escape
+            respond(exchange, 400, "{\"error\":\"malformed query\"}");
+        }
+    }
+
+    private int k(Map<String, String> params) {
+        int k = params.containsKey("k") ? Integer.parseInt(params.get("k")) : defaultK;
+        if (k <= 0)
+            throw new NumberFormatException();
+        // a ranking never has more entries than there are characters, so larger k would only allocate
+        return Math.min(k, engine.characters().size());
+    }
+
+    /**
+     * Appends the ranking of the character as JSON object, from the cache if it was computed before
+     *
+     * @return Whether the character is known
+     */
+    private boolean appendRanking(StringBuilder sb, String character, int k, String restrict) {
+        if (!engine.contains(character)) {
+            Json.appendString(sb.append("{\"char\":"), character).append(",\"error\":\"unknown character\"}");
+            return false;
+        }
+
+        String key = character + '\t' + k + '\t' + (restrict == null ? "" : restrict);
+        String json = cache.get(key);
+        if (json == null) {
+            json = rankingJson(character, k, restrict);
+            cache.put(key, json);
+        }
+        sb.append(json);
+        return true;
+    }
+
+    private String rankingJson(String character, int k, String restrict) {
+        BitSet allowed = null;
+        if (restrict != null) {
+            allowed = new BitSet();
+            for (int pos = 0; pos < restrict.length(); pos += Character.charCount(restrict.codePointAt(pos))) {
+                String c = new String(Character.toChars(restrict.codePointAt(pos)));
+                if (engine.contains(c))
+                    allowed.set(engine.indexOf(c));
+            }
+        }
+
+        TopK top = new TopK(k);
+        Workspace ws = engine.borrow();
+        try {
+            engine.rank(engine.indexOf(character), top, ws, allowed);
+        } finally {
+            engine.release(ws);
+        }
+
+        return Json.appendRanking(new StringBuilder(), character, engine.neighbors(top)).toString();
+    }
+
+    private static Map<String, String> queryParams(HttpExchange exchange) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null)
+            return params;
+        for (String param : query.split("&")) {
+            int eq = param.indexOf('=');
+            if (eq > 0)
+                params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"), URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+        }
+        return params;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+}
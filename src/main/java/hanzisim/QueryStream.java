@@ -0,0 +1,138 @@
+package hanzisim;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Answers similarity queries read from a stream, e.g. as a stage of a pipeline. Every character of the input is a
+ * query, except that a line holding only the number of an unencoded component queries that component. Each distinct
+ * character is only answered once.
+ * <p>
+ * Queries are ranked in batches on a fixed number of threads, and every result is written as one JSON object per line
+ * (NDJSON) as soon as its batch is done, so the output order can differ from the input order. Reading pauses while
+ * too many batches are waiting, so memory stays bounded however long the input is.
+ */
+public class QueryStream {
+    private final SimilarityEngine engine;
+    private final int k;
+    private final int batchSize;
+    private final int nThreads;
+    // characters that were already queried, by index and for unknown characters by code point
+    private final BitSet seen;
+    private final BitSet seenUnknown = new BitSet();
+    final AtomicInteger answered = new AtomicInteger();
+
+    public QueryStream(SimilarityEngine engine, int k, int batchSize, int nThreads) {
+        this.engine = engine;
+        this.k = k;
+        this.batchSize = batchSize;
+        this.nThreads = nThreads;
+        seen = new BitSet(engine.characters().size());
+    }
+
+    /**
+     * Reads queries until the end of in and writes the results to out
+     */
+    public void run(Reader in, final Writer out) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        // batches that are queued or being ranked
+        final Semaphore inFlight = new Semaphore(2 * nThreads);
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+
+        List<String> batch = new ArrayList<>(batchSize);
+        String line;
+        try {
+            while (failure.get() == null && (line = reader.readLine()) != null) {
+                String name = line.trim();
+                if (name.codePointCount(0, name.length()) > 1 && engine.contains(name)) {
+                    query(name, batch);
+                } else {
+                    for (int i = 0; i < line.length(); i += Character.charCount(line.codePointAt(i))) {
+                        if (!Character.isWhitespace(line.codePointAt(i)))
+                            query(new String(Character.toChars(line.codePointAt(i))), batch);
+                    }
+                }
+                // don't hold back a partial batch while waiting for more input
+                if (batch.size() >= batchSize || (!batch.isEmpty() && !reader.ready())) {
+                    submit(pool, inFlight, failure, batch, out);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty())
+                submit(pool, inFlight, failure, batch, out);
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while ranking queries", e);
+        }
+        if (failure.get() != null)
+            throw failure.get();
+    }
+
+    /**
+     * Adds the character to the batch unless it was queried before
+     */
+    private void query(String character, List<String> batch) {
+        if (engine.contains(character)) {
+            int i = engine.indexOf(character);
+            if (seen.get(i))
+                return;
+            seen.set(i);
+        } else {
+            int codePoint = character.codePointAt(0);
+            if (seenUnknown.get(codePoint))
+                return;
+            seenUnknown.set(codePoint);
+        }
+        batch.add(character);
+    }
+
+    private void submit(ExecutorService pool, final Semaphore inFlight, final AtomicReference<IOException> failure,
+                        final List<String> batch, final Writer out) throws InterruptedException {
+        // blocks reading until a batch is done if too many are waiting
+        inFlight.acquire();
+        pool.execute(() -> {
+            try {
+                StringBuilder sb = new StringBuilder();
+                TopK top = new TopK(k);
+                Workspace ws = engine.borrow();
+                try {
+                    for (String character : batch) {
+                        if (engine.contains(character)) {
+                            engine.rank(engine.indexOf(character), top, ws, null);
+                            Json.appendRanking(sb, character, engine.neighbors(top));
+                        } else {
+                            Json.appendString(sb.append("{\"char\":"), character).append(",\"error\":\"unknown character\"}");
+                        }
+                        sb.append('\n');
+                    }
+                } finally {
+                    engine.release(ws);
+                }
+                synchronized (out) {
+                    out.write(sb.toString());
+                    out.flush();
+                }
+                answered.addAndGet(batch.size());
+            } catch (IOException e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+}
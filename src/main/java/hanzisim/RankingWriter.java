@@ -0,0 +1,27 @@
+package hanzisim;
+
+import java.io.IOException;
+
+/**
+ * Output of the rankings computed by create. Rankings of different characters may be written from several threads
+ * concurrently.
+ */
+public interface RankingWriter {
+    /**
+     * @param i   index of the ranked character
+     * @param top ranking of the character, sorted from most to least similar
+     */
+    void write(int i, TopK top) throws IOException;
+
+    /**
+     * Forces everything written so far to disk
+     */
+    void checkpoint() throws IOException;
+
+    void close() throws IOException;
+
+    /**
+     * Closes the output of a run that was cancelled, keeping whatever can be resumed
+     */
+    void abort() throws IOException;
+}
@@ -3,8 +3,13 @@ package hanzisim;
 import org.apache.commons.cli.CommandLine;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
 
 
 public class Resources  {
@@ -17,40 +22,90 @@ public class Resources  {
     public static Map<String, FlatDecomp[]> flattenDecomposition(CommandLine args) {
         String cjkDecompPath = args.getOptionValue("decomp");
         String stopRadicalsPath = args.getOptionValue("radicals");
+        return flattenDecomposition(cjkDecompPath, stopRadicalsPath, selectedCharSet(args));
+    }
 
+    /**
+     * @param restrictSet only characters in this set are flattened, all if it's null
+     */
+    public static Map<String, FlatDecomp[]> flattenDecomposition(String cjkDecompPath, String stopRadicalsPath, Set<String> restrictSet) {
         Set<String> radicals = readRadicals(stopRadicalsPath);
         Map<String, CjkDecomp> decomp = readCjkDecomp(cjkDecompPath);
+        return flattenDecomposition(decomp, radicals, restrictSet);
+    }
 
-        final Set<String> restrictSet = args.hasOption("restrict") ? Resources.readFileCharSet(args.getOptionValue("restrict")) : new HashSet<>();
-
-        Map<String, FlatDecomp[]> flattened = new HashMap<>();
+    /**
+     * Flattens already parsed decompositions, decomp isn't modified and can be flattened with several radical sets
+     *
+     * @param radicals    radicals to stop the decomposition at
+     * @param restrictSet only characters in this set are flattened, all if it's null
+     */
+    public static Map<String, FlatDecomp[]> flattenDecomposition(final Map<String, CjkDecomp> decomp, final Set<String> radicals,
+                                                                 Set<String> restrictSet) {
+        long start = Metrics.start();
+        final List<String> characters = new ArrayList<>();
         for (String character : decomp.keySet()) {
-            if (!restrictSet.contains(character))
+            if (restrictSet != null && !restrictSet.contains(character))
                 continue;
+            characters.add(character);
+        }
 
+        // flattenings of all components in the unit box, shared by the characters containing them
+        final Map<String, FlatDecomp[]> unitFlattened = new ConcurrentHashMap<>();
+        final FlatDecomp[][] charDecomps = new FlatDecomp[characters.size()][];
+        IntStream.range(0, characters.size()).parallel().forEach(i -> {
             try {
-                List<FlatDecomp> all = decomposeComponent(character, radicals, decomp, flattened, 0, 1.0f, 1.0f, 0);
-                flattened.put(character, all.toArray(new FlatDecomp[all.size()]));
+                List<FlatDecomp> all = decomposeComponent(characters.get(i), radicals, decomp, unitFlattened, 0, 1.0f, 1.0f, 0);
+                FlatDecomp[] charDecomp = all.toArray(new FlatDecomp[all.size()]);
+                // sort by component character
+                Arrays.sort(charDecomp, new Comparator<FlatDecomp>() {
+                    @Override
+                    public int compare(FlatDecomp a, FlatDecomp b) {
+                        return a.comp.compareTo(b.comp);
+                    }
+                });
+                charDecomps[i] = charDecomp;
             } catch (ParseException e) {
                 e.printStackTrace();
             }
-        }
+        });
 
-        // sort by component character
-        for (FlatDecomp[] charDecomp : flattened.values()) {
-            Arrays.sort(charDecomp, new Comparator<FlatDecomp>() {
-                @Override
-                public int compare(FlatDecomp a, FlatDecomp b) {
-                    return a.comp.compareTo(b.comp);
-                }
-            });
+        // insert sequentially so that the iteration order of the map doesn't depend on the thread scheduling
+        Map<String, FlatDecomp[]> flattened = new HashMap<>();
+        for (int i = 0; i < characters.size(); i++) {
+            if (charDecomps[i] != null)
+                flattened.put(characters.get(i), charDecomps[i]);
         }
 
+        Metrics.stop(Metrics.Phase.FLATTEN, start);
         return flattened;
     }
 
+    /**
+     * Flattens the component into the given box. The flattening of every component is only computed once in the unit box
+     * and then moved into the box of the component containing it.
+     *
+     * @param flattened Cache of flattenings in the unit box, needs to be thread safe if shared between threads
+     */
     public static List<FlatDecomp> decomposeComponent(String comp, Set<String> radicals, Map<String, CjkDecomp> decomp,
                                                        Map<String, FlatDecomp[]> flattened, float left, float right, float top, float bottom) throws ParseException {
+        FlatDecomp[] unit = flattened.get(comp);
+        if (unit == null) {
+            List<FlatDecomp> all = decomposeUnitBox(comp, radicals, decomp, flattened);
+            unit = all.toArray(new FlatDecomp[all.size()]);
+            // another thread may have flattened the same component in the meantime, both results are equal
+            flattened.putIfAbsent(comp, unit);
+        }
+
+        List<FlatDecomp> placed = new ArrayList<>(unit.length);
+        for (FlatDecomp fd : unit)
+            placed.add(fd.placeIn(left, right, top, bottom));
+        return placed;
+    }
+
+    private static List<FlatDecomp> decomposeUnitBox(String comp, Set<String> radicals, Map<String, CjkDecomp> decomp,
+                                                     Map<String, FlatDecomp[]> flattened) throws ParseException {
+        final float left = 0, right = 1.0f, top = 1.0f, bottom = 0;
         float width = right - left;
         float height = top - bottom;
         assert (width >= 0 && height >= 0);
@@ -167,45 +222,49 @@ public class Resources  {
         return all;
     }
 
+    /**
+     * Lines have the form character:modifier(component,component,...). They are parsed in parallel and put into the
+     * map in the order of the file.
+     */
     public static Map<String, CjkDecomp> readCjkDecomp(String path) {
+        long start = Metrics.start();
         Map<String, CjkDecomp> result = new HashMap<>();
-        BufferedReader reader;
         try {
-            reader = new BufferedReader(new FileReader(new File(path)));
-            String line;
+            List<Map.Entry<String, CjkDecomp>> lines = ChunkedLineReader.parseLines(path, 0, (bytes, lineStart, lineEnd) -> {
+                int colon = ChunkedLineReader.indexOf(bytes, lineStart, lineEnd, ':');
+                int open = ChunkedLineReader.indexOf(bytes, colon, lineEnd, '(');
+                int close = ChunkedLineReader.indexOf(bytes, open, lineEnd, ')');
+                String[] comps = close > open + 1 ? ChunkedLineReader.split(bytes, open + 1, close, ',') : new String[]{};
+                return Map.entry(ChunkedLineReader.string(bytes, lineStart, colon),
+                        new CjkDecomp(ChunkedLineReader.string(bytes, colon + 1, open), comps));
+            });
             int count = 0;
-            while ((line = reader.readLine()) != null) {
+            for (Map.Entry<String, CjkDecomp> line : lines) {
                 count++;
                 if (Definitions.DEBUG && count % 20 != 0)
                     continue;
-                String[] ss = line.split(":");
-                assert (ss.length == 2);
-                int modifierEnd = ss[1].indexOf('(');
-                String modifier = ss[1].substring(0, modifierEnd);
-                String allList = ss[1].substring(modifierEnd + 1, ss[1].indexOf(')'));
-                String[] comps = allList.length() > 0 ? allList.split(",") : new String[]{};
-                result.put(ss[0], new CjkDecomp(modifier, comps));
+                result.put(line.getKey(), line.getValue());
             }
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
         }
 
+        Metrics.stop(Metrics.Phase.PARSE, start);
         return result;
     }
 
     public static Set<String> readRadicals(String path) {
         Set<String> result = new HashSet<>();
-        BufferedReader reader;
         try {
-            reader = new BufferedReader(new FileReader(new File(path)));
-            String line;
+            List<String> lines = ChunkedLineReader.parseLines(path, 0, (bytes, lineStart, lineEnd) ->
+                    ChunkedLineReader.string(bytes, lineStart, ChunkedLineReader.indexOf(bytes, lineStart, lineEnd, ',')));
             int count = 0;
-            while ((line = reader.readLine()) != null) {
+            for (String radical : lines) {
                 count++;
                 if (Definitions.DEBUG && count % 20 != 0)
                     continue;
-                result.add(line.split(",")[0]);
+                result.add(radical);
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -219,7 +278,7 @@ public class Resources  {
         Map<String, String[]> result = new HashMap<>();
         BufferedReader reader;
         try {
-            reader = new BufferedReader(new FileReader(new File(fname)));
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(fname), StandardCharsets.UTF_8));
             String line = reader.readLine();    // skip header
             int count = 0;
             while ((line = reader.readLine()) != null) {
@@ -241,16 +300,15 @@ public class Resources  {
 
     public static List<String[]> readTestcases(String fname) {
         List<String[]> result = new ArrayList<>();
-        BufferedReader reader;
         try {
-            reader = new BufferedReader(new FileReader(new File(fname)));
-            String line;
+            List<String[]> lines = ChunkedLineReader.parseLines(fname, 0, (bytes, lineStart, lineEnd) ->
+                    ChunkedLineReader.split(bytes, lineStart, lineEnd, ','));
             int count = 0;
-            while ((line = reader.readLine()) != null) {
+            for (String[] testcase : lines) {
                 count++;
                 if (Definitions.DEBUG && count % 20 != 0)
                     continue;
-                result.add(line.split(","));
+                result.add(testcase);
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -260,40 +318,93 @@ public class Resources  {
         return result;
     }
 
-    public static Map<String, String[]> readJapaneseToSimplChinese(String fname) {
-        Map<String, String[]> result = new HashMap<>();
-        BufferedReader reader;
+    /**
+     * Reads the Japanese, traditional and simplified forms of every row of the mapping table into a variant graph.
+     * Forms that are missing (N/A) or longer than one code point are left out.
+     */
+    public static VariantGraph readJapaneseToSimplChinese(String fname) {
+        long start = Metrics.start();
+        List<int[]> japanese = new ArrayList<>();
+        List<int[]> simplified = new ArrayList<>();
+        List<int[]> rows = new ArrayList<>();
         try {
-            reader = new BufferedReader(new FileReader(new File(fname)));
-            String line;
-            int count = 0;
-            while ((line = reader.readLine()) != null) {
-                if (count >= 17) {  // header
-                    String[] comps = line.split("\t");
-                    String jpn = comps[0];
-                    String chn = comps[2];
-                    result.put(jpn, chn.split(","));
+            // 17 header lines, every row has a column of Japanese, traditional and simplified forms each
+            List<int[][]> lines = ChunkedLineReader.parseLines(fname, 17, (bytes, lineStart, lineEnd) -> {
+                int[][] columns = new int[3][];
+                int pos = lineStart;
+                for (int c = 0; c < columns.length; c++) {
+                    int stop = ChunkedLineReader.indexOf(bytes, pos, lineEnd, '\t');
+                    columns[c] = parseForms(bytes, pos, stop);
+                    pos = Math.min(lineEnd, stop + 1);
+                }
+                return columns;
+            });
+            for (int[][] columns : lines) {
+                int[] forms = new int[columns[0].length + columns[1].length + columns[2].length];
+                System.arraycopy(columns[0], 0, forms, 0, columns[0].length);
+                System.arraycopy(columns[1], 0, forms, columns[0].length, columns[1].length);
+                System.arraycopy(columns[2], 0, forms, columns[0].length + columns[1].length, columns[2].length);
+                if (forms.length > 1) {
+                    japanese.add(columns[0]);
+                    simplified.add(columns[2]);
+                    rows.add(forms);
                 }
-                count++;
             }
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
         }
+        VariantGraph result = VariantGraph.fromRows(japanese, simplified, rows);
 
+        Metrics.stop(Metrics.Phase.PARSE, start);
         return result;
     }
 
+    /**
+     * @return Code points of the comma-separated forms in [start, end) that are a single code point
+     */
+    private static int[] parseForms(byte[] bytes, int start, int end) {
+        int[] forms = new int[4];
+        int nForms = 0;
+        for (int pos = start; pos < end; ) {
+            int stop = ChunkedLineReader.indexOf(bytes, pos, end, ',');
+            String form = ChunkedLineReader.string(bytes, pos, stop);
+            if (!form.isEmpty() && form.codePointCount(0, form.length()) == 1) {
+                if (nForms == forms.length)
+                    forms = Arrays.copyOf(forms, 2 * nForms);
+                forms[nForms++] = form.codePointAt(0);
+            }
+            pos = stop + 1;
+        }
+        return Arrays.copyOf(forms, nForms);
+    }
+
+    /**
+     * @return Characters that need to be flattened: only those in the restrict file, and if both queries and
+     * candidates are given only those occurring in one of them. Null if all characters are needed.
+     */
+    public static Set<String> selectedCharSet(CommandLine args) {
+        Set<String> restrictSet = args.hasOption("restrict") ? readFileCharSet(args.getOptionValue("restrict")) : null;
+        if (!args.hasOption("queries") || !args.hasOption("candidates"))
+            return restrictSet;
+        Set<String> selected = readFileCharSet(args.getOptionValue("queries"));
+        selected.addAll(readFileCharSet(args.getOptionValue("candidates")));
+        if (restrictSet != null)
+            selected.retainAll(restrictSet);
+        return selected;
+    }
+
     public static Set<String> readFileCharSet(String fname) {
         Set<String> charSet = new HashSet<>();
 
         BufferedReader reader;
         try {
-            reader = new BufferedReader(new FileReader(new File(fname)));
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(fname), StandardCharsets.UTF_8));
             String line;
             while ((line = reader.readLine()) != null) {
-                for (int i = 0; i < line.length(); i++) {
-                    charSet.add(String.valueOf(line.charAt(i)));
+                // supplementary characters are two chars long
+                for (int i = 0; i < line.length(); i += Character.charCount(line.codePointAt(i))) {
+                    charSet.add(new String(Character.toChars(line.codePointAt(i))));
                 }
             }
         } catch (IOException e) {
@@ -305,9 +416,102 @@ public class Resources  {
     }
 
     public static void write(final BufferedWriter br, final String s) throws IOException {
+        long start = Metrics.start();
         synchronized (br) {
+            Metrics.writeWait(start);
             br.write(s);
         }
     }
 
+    /**
+     * Flushes everything written so far and forces it to disk
+     *
+     * @param out the stream br is writing to
+     */
+    public static void checkpoint(final BufferedWriter br, final FileOutputStream out) throws IOException {
+        synchronized (br) {
+            br.flush();
+            out.getFD().sync();
+        }
+    }
+
+    /**
+     * @return File to write to before it replaces target in one step. It's in the same directory so that it can be
+     * renamed, and named by process so that concurrent writers don't clash.
+     */
+    static Path tempSibling(String fname) {
+        Path target = Paths.get(fname).toAbsolutePath();
+        return target.resolveSibling(target.getFileName() + "." + ProcessHandle.current().pid() + ".tmp");
+    }
+
+    /**
+     * Reads the complete lines of a ranking file. A partially written last line, e.g. because the process was killed,
+     * is ignored.
+     */
+    public static List<String> readRankingLines(String fname) {
+        List<String> result = new ArrayList<>();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(fname), StandardCharsets.UTF_8));
+            long complete = completeLength(fname);
+            long length = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                length += line.getBytes(StandardCharsets.UTF_8).length + 1;
+                if (length > complete)
+                    break;
+                result.add(line);
+            }
+            reader.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        return result;
+    }
+
+    /**
+     * Reads which characters a ranking file already contains and cuts off a partially written last line so that
+     * more rankings can be appended
+     */
+    public static Set<String> readRankedCharacters(String fname) {
+        Set<String> result = new HashSet<>();
+        if (!new File(fname).exists())
+            return result;
+
+        for (String line : readRankingLines(fname))
+            result.add(rankedCharacter(line));
+
+        try {
+            RandomAccessFile file = new RandomAccessFile(fname, "rw");
+            file.setLength(completeLength(fname));
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        return result;
+    }
+
+    public static String rankedCharacter(String rankingLine) {
+        return rankingLine.substring(0, rankingLine.indexOf(';'));
+    }
+
+    /**
+     * @return Length in bytes up to and including the last line break
+     */
+    private static long completeLength(String fname) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(fname, "r");
+        long pos = file.length();
+        while (pos > 0) {
+            file.seek(pos - 1);
+            if (file.read() == '\n')
+                break;
+            pos--;
+        }
+        file.close();
+        return pos;
+    }
+
 }
@@ -0,0 +1,29 @@
+package hanzisim;
+
+/**
+ * Constants of the similarity heuristic that can be tuned with the sweep method
+ */
+public class ScoringParams {
+    public static final ScoringParams DEFAULT = new ScoringParams(0.99f, 2, (float) Math.sqrt(2));
+
+    // similarity of a character and its variant in the Japanese to simplified Chinese mapping
+    public final float variantScore;
+    // weight of a matched pair of components, the sum is divided by the total number of components
+    public final float pairWeight;
+    // distance between the centers of two components at which their position similarity is 0
+    public final float positionNorm;
+    // position similarities of all distances on the grid of component centers
+    final float[] positionTable;
+
+    public ScoringParams(float variantScore, float pairWeight, float positionNorm) {
+        this.variantScore = variantScore;
+        this.pairWeight = pairWeight;
+        this.positionNorm = positionNorm;
+        positionTable = PackedDecomps.positionTable(positionNorm);
+    }
+
+    @Override
+    public String toString() {
+        return "variant=" + variantScore + " pairWeight=" + pairWeight + " positionNorm=" + positionNorm;
+    }
+}
@@ -0,0 +1,419 @@
+package hanzisim;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Computes similarities and rankings of characters on demand. Built once from the decomposition, radical and mapping
+ * files (or a {@link Snapshot}), afterwards it's safe to use from any number of threads.
+ * <p>
+ * Characters are usually single code points, but unencoded components of the decomposition are named by a number
+ * and can only be queried with the String methods.
+ */
+public class SimilarityEngine {
+    // characters per tile of rankTiled, so that the packed decompositions of a tile fit into the L2 cache
+    private static final int TILE = 4096;
+
+    final Snapshot data;
+    final ComponentIndex index;
+    // characters scored by rank, the exact index unless the engine is approximate
+    final CandidateSource candidates;
+    final ScoringParams params;
+    // pooled instead of thread local so that short-lived threads don't each allocate their own
+    private final Queue<Workspace> workspaces = new ConcurrentLinkedQueue<>();
+
+    public SimilarityEngine(Snapshot data) {
+        this(data, ScoringParams.DEFAULT);
+    }
+
+    public SimilarityEngine(Snapshot data, ScoringParams params) {
+        this.data = data;
+        this.params = params;
+        index = new ComponentIndex(data.decomp, data.allChars, data.variants);
+        candidates = index;
+    }
+
+    private SimilarityEngine(SimilarityEngine other, CandidateSource candidates, ScoringParams params) {
+        data = other.data;
+        index = other.index;
+        this.candidates = candidates;
+        this.params = params;
+    }
+
+    /**
+     * @return Engine scoring the same characters with different parameters, the data and index are shared
+     */
+    public SimilarityEngine withParams(ScoringParams params) {
+        return new SimilarityEngine(this, candidates, params);
+    }
+
+    /**
+     * Rankings of the returned engine only consider the candidates found by a {@link MinHashIndex}, which is much
+     * faster but may miss some of the most similar characters. Use {@link #recall} to measure how many.
+     *
+     * @param bands more bands find more candidates
+     * @param rows  more rows per band find fewer candidates
+     */
+    public SimilarityEngine approximate(int bands, int rows) {
+        return new SimilarityEngine(this, new MinHashIndex(index, data.decomp, bands, rows), params);
+    }
+
+    /**
+     * @return Fraction of the exact top k characters that are also in the top k of this engine, over a random sample
+     * of characters
+     */
+    public float recall(SimilarityEngine exact, int k, int samples, long seed) {
+        Random rng = new Random(seed);
+        TopK exactTop = new TopK(k);
+        TopK top = new TopK(k);
+        BitSet found = new BitSet(data.allChars.size());
+        long hits = 0;
+        long total = 0;
+        Workspace ws = borrow();
+        try {
+            for (int s = 0; s < samples; s++) {
+                int i = rng.nextInt(data.allChars.size());
+                exact.rank(i, exactTop, ws, null);
+                rank(i, top, ws, null);
+                found.clear();
+                for (int r = 0; r < top.size(); r++)
+                    found.set(top.index(r));
+                for (int r = 0; r < exactTop.size(); r++) {
+                    if (found.get(exactTop.index(r)))
+                        hits++;
+                }
+                total += exactTop.size();
+            }
+        } finally {
+            release(ws);
+        }
+        return total == 0 ? 1 : (float) hits / total;
+    }
+
+    /**
+     * @param restrictPath only characters occurring in this file are included, all if it's null
+     */
+    public static SimilarityEngine fromFiles(String decompPath, String radicalsPath, String jpnToChinPath, String restrictPath) {
+        return new SimilarityEngine(Snapshot.fromSources(decompPath, radicalsPath, jpnToChinPath, restrictPath));
+    }
+
+    /**
+     * @return All characters that can be queried
+     */
+    public List<String> characters() {
+        return Collections.unmodifiableList(data.allChars);
+    }
+
+    public boolean contains(String character) {
+        return data.allChars.contains(character);
+    }
+
+    /***
+     *
+     * @return Value between 0 (very dissimilar) and 1 (identical)
+     */
+    public float similarity(int codePoint1, int codePoint2) {
+        return similarity(toString(codePoint1), toString(codePoint2));
+    }
+
+    public float similarity(String c1, String c2) {
+        Workspace ws = borrow();
+        try {
+            return similarity(indexOf(c1), indexOf(c2), ws.scratch);
+        } finally {
+            release(ws);
+        }
+    }
+
+    /**
+     * @return The k characters most similar to the query, most similar first. Characters with similarity 0 aren't
+     * included, so there may be fewer than k.
+     */
+    public List<Neighbor> topK(int codePoint, int k) {
+        return topK(toString(codePoint), k);
+    }
+
+    public List<Neighbor> topK(String character, int k) {
+        if (k <= 0)
+            throw new IllegalArgumentException("k must be positive");
+        // a ranking never has more entries than there are characters
+        TopK top = new TopK(Math.min(k, data.allChars.size()));
+        Workspace ws = borrow();
+        try {
+            rank(indexOf(character), top, ws, null);
+        } finally {
+            release(ws);
+        }
+        return neighbors(top);
+    }
+
+    /**
+     * @return Position of candidate in the full ranking of query, starting at 0, or -1 if their similarity is 0 and
+     * candidate isn't ranked at all
+     */
+    public int rankOf(int queryCodePoint, int candidateCodePoint) {
+        return rankOf(toString(queryCodePoint), toString(candidateCodePoint));
+    }
+
+    public int rankOf(String query, String candidate) {
+        int i = indexOf(query);
+        int c = indexOf(candidate);
+        if (i == c)
+            return -1;
+        Workspace ws = borrow();
+        try {
+            float score = similarity(i, c, ws.scratch);
+            if (score == 0)
+                return -1;
+            // count the candidates that are ranked before, same order as TopK
+            int rank = 0;
+            boolean ranked = false;
+            int nCandidates = candidates.collectCandidates(i, ws.stamps, ws.nextStamp(), ws.candidates);
+            for (int n = 0; n < nCandidates; n++) {
+                int j = ws.candidates[n];
+                if (j == c) {
+                    ranked = true;
+                    continue;
+                }
+                int cmp = Float.compare(similarity(i, j, ws.scratch), score);
+                if (cmp > 0 || (cmp == 0 && j < c))
+                    rank++;
+            }
+            // an approximate engine may not consider the candidate at all
+            return ranked ? rank : -1;
+        } finally {
+            release(ws);
+        }
+    }
+
+    int indexOf(String character) {
+        int i = data.allChars.indexOf(character);
+        if (i < 0)
+            throw new IllegalArgumentException("Unknown character " + character);
+        return i;
+    }
+
+    Workspace borrow() {
+        Workspace ws = workspaces.poll();
+        return ws != null ? ws : new Workspace(data.decomp, 0);
+    }
+
+    void release(Workspace ws) {
+        workspaces.offer(ws);
+    }
+
+    List<Neighbor> neighbors(TopK top) {
+        List<Neighbor> result = new ArrayList<>(top.size());
+        for (int rank = 0; rank < top.size(); rank++)
+            result.add(new Neighbor(data.allChars.get(top.index(rank)), top.score(rank)));
+        return result;
+    }
+
+    /**
+     * Offers the similarity of every candidate of character i that can enter the top k to top and sorts it.
+     * <p>
+     * Every matched pair of components adds at most pairWeight before the sum is divided by the total length, so a
+     * character of length l can't score more than pairWeight * min(L, l) / (L + l) against one of length L. Candidates
+     * are visited in order of that bound, from the lengths closest to L outwards, and as soon as the bound of a length
+     * is below the k-th best score so far, none of the remaining candidates can enter the ranking anymore. Variants
+     * don't need to overlap and are offered with the variant score before all other candidates.
+     *
+     * @param allowed only characters in this set are ranked, all if it's null
+     */
+    void rank(int i, TopK top, Workspace ws, BitSet allowed) {
+        long start = Metrics.start();
+        top.clear();
+        final int nCandidates = candidates.collectCandidates(i, ws.stamps, ws.nextStamp(), ws.candidates);
+        final int scoredStamp = ws.nextStamp();
+        final PackedDecomps decomp = data.decomp;
+        final int maxLength = decomp.maxLength;
+
+        // counting sort by length
+        final int[] starts = ws.lengthStarts;
+        final int[] ends = ws.lengthEnds;
+        Arrays.fill(starts, 0);
+        for (int c = 0; c < nCandidates; c++)
+            starts[decomp.length(ws.candidates[c]) + 1]++;
+        for (int l = 0; l <= maxLength; l++)
+            starts[l + 1] += starts[l];
+        System.arraycopy(starts, 0, ends, 0, maxLength + 1);
+        for (int c = 0; c < nCandidates; c++) {
+            int j = ws.candidates[c];
+            ws.sorted[ends[decomp.length(j)]++] = j;
+        }
+
+        int scored = 0;
+        int zero = 0;
+        for (int j : index.variants(i)) {
+            if (allowed == null || allowed.get(j)) {
+                ws.stamps[j] = scoredStamp;
+                top.offer(j, variantSimilarity(i, j, ws.scratch));
+                scored++;
+            }
+        }
+        final int length = decomp.length(i);
+        int shorter = Math.min(length, maxLength);
+        int longer = length + 1;
+        while (shorter >= 0 || longer <= maxLength) {
+            int l;
+            if (shorter < 0 || (longer <= maxLength && upperBound(length, longer) > upperBound(length, shorter)))
+                l = longer++;
+            else
+                l = shorter--;
+            // the bounds of all remaining lengths are at most this one
+            if (top.isFull() && upperBound(length, l) < top.minScore())
+                break;
+
+            for (int p = starts[l]; p < starts[l + 1]; p++) {
+                int j = ws.sorted[p];
+                if (ws.stamps[j] == scoredStamp || (allowed != null && !allowed.get(j)))
+                    continue;
+                float score = decomp.componentSimilarity(i, j, ws.scratch, params);
+                top.offer(j, score);
+                if (Metrics.ENABLED) {
+                    scored++;
+                    if (score == 0)
+                        zero++;
+                }
+            }
+        }
+        Metrics.pairs(scored, zero);
+        Metrics.pruned(nCandidates - scored);
+        Metrics.stop(Metrics.Phase.SCORE, start);
+
+        start = Metrics.start();
+        top.sort();
+        Metrics.stop(Metrics.Phase.SORT, start);
+    }
+
+    /**
+     * Ranks queries[from] to queries[to - 1] against the allowed characters into tops[0] to tops[to - from - 1]. The
+     * characters are split into tiles of consecutive indices, whose packed decompositions are adjacent in memory, and
+     * all queries of the block are scored against one tile after the other so that the tile stays in cache. The
+     * postings of a component are sorted, so the part falling into a tile is found by binary search. Candidates whose
+     * upper bound is below a full ranking are skipped. The rankings are the same as those of {@link #rank}.
+     *
+     * @param allowed only characters in this set are ranked, all if it's null
+     */
+    void rankTiled(int[] queries, int from, int to, TopK[] tops, Workspace ws, BitSet allowed) {
+        long start = Metrics.start();
+        final PackedDecomps decomp = data.decomp;
+        int scored = 0;
+        int zero = 0;
+        for (int q = from; q < to; q++) {
+            TopK top = tops[q - from];
+            top.clear();
+            for (int j : index.variants(queries[q])) {
+                if (allowed == null || allowed.get(j)) {
+                    top.offer(j, variantSimilarity(queries[q], j, ws.scratch));
+                    scored++;
+                }
+            }
+        }
+
+        for (int tileStart = 0; tileStart < decomp.size(); tileStart += TILE) {
+            final int tileEnd = Math.min(decomp.size(), tileStart + TILE);
+            for (int q = from; q < to; q++) {
+                final int i = queries[q];
+                final TopK top = tops[q - from];
+                final int length = decomp.length(i);
+                final int stamp = ws.nextStamp();
+                ws.stamps[i] = stamp;
+                // already offered
+                for (int j : index.variants(i))
+                    ws.stamps[j] = stamp;
+
+                for (int k = decomp.offsets[i]; k < decomp.offsets[i + 1]; k++) {
+                    if (k > decomp.offsets[i] && decomp.comps[k] == decomp.comps[k - 1])
+                        continue;
+                    final int[] postings = index.postings(decomp.comps[k]);
+                    int p = Arrays.binarySearch(postings, tileStart);
+                    for (p = p < 0 ? -p - 1 : p; p < postings.length && postings[p] < tileEnd; p++) {
+                        int j = postings[p];
+                        if (ws.stamps[j] == stamp)
+                            continue;
+                        ws.stamps[j] = stamp;
+                        if (allowed != null && !allowed.get(j))
+                            continue;
+                        if (top.isFull() && upperBound(length, decomp.length(j)) < top.minScore())
+                            continue;
+                        float score = decomp.componentSimilarity(i, j, ws.scratch, params);
+                        top.offer(j, score);
+                        if (Metrics.ENABLED) {
+                            scored++;
+                            if (score == 0)
+                                zero++;
+                        }
+                    }
+                }
+            }
+        }
+        Metrics.pairs(scored, zero);
+        Metrics.stop(Metrics.Phase.SCORE, start);
+
+        start = Metrics.start();
+        for (int q = from; q < to; q++)
+            tops[q - from].sort();
+        Metrics.stop(Metrics.Phase.SORT, start);
+    }
+
+    /**
+     * @return Highest possible component overlap of characters with the given lengths. Slightly raised so that it also
+     * bounds the rounding errors of summing the pair scores in float.
+     */
+    private float upperBound(int length1, int length2) {
+        return (float) (params.pairWeight * (double) Math.min(length1, length2) / (length1 + length2) * (1 + 1e-5));
+    }
+
+    /**
+     * Fills similarities with the similarity of every character to character i. Only characters sharing a component
+     * or variant with it are scored, all others (and i itself) are set to 0.
+     */
+    void scoreAll(int i, float[] similarities, Workspace ws) {
+        Arrays.fill(similarities, 0);
+        int nCandidates = index.collectCandidates(i, ws.stamps, ws.nextStamp(), ws.candidates);
+        for (int c = 0; c < nCandidates; c++) {
+            int j = ws.candidates[c];
+            similarities[j] = data.decomp.componentSimilarity(i, j, ws.scratch, params);
+        }
+        for (int j : index.variants(i))
+            similarities[j] = variantSimilarity(i, j, ws.scratch);
+    }
+
+    /**
+     * @return Similarity of character i and its variant j: the variant score if they are direct variants. Other
+     * variants only get half of it, or their component overlap if that is higher, so that they don't tie with the
+     * direct ones and long chains through the mapping don't count as near-identical.
+     */
+    float variantSimilarity(int i, int j, float[] scratch) {
+        if (data.variants.isDirect(data.allChars.codePoint(i), data.allChars.codePoint(j)))
+            return params.variantScore;
+        return Math.max(params.variantScore / 2, data.decomp.componentSimilarity(i, j, scratch, params));
+    }
+
+    /***
+     *
+     * @return Value between 0 (very dissimilar) and 1 (identical)
+     */
+    float similarity(int i, int j, float[] scratch) {
+        if (i == j)
+            return 1;
+
+        // if one is a variant of the other, return almost perfect match
+        if (isVariant(i, j))
+            return variantSimilarity(i, j, scratch);
+
+        // component overlap
+        return data.decomp.componentSimilarity(i, j, scratch, params);
+    }
+
+    boolean isVariant(int i, int j) {
+        int codePoint1 = data.allChars.codePoint(i);
+        int codePoint2 = data.allChars.codePoint(j);
+        return codePoint1 >= 0 && codePoint2 >= 0 && data.variants.contains(codePoint1, codePoint2);
+    }
+
+    private static String toString(int codePoint) {
+        return new String(Character.toChars(codePoint));
+    }
+}
@@ -0,0 +1,227 @@
+package hanzisim;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Read-only view of a binary ranking file written by create with --format index. Lookups go straight to the
+ * memory-mapped file and don't allocate.
+ * <p>
+ * The file starts with a header (magic, version, k, lowest and highest code point, number of records) followed by a
+ * table with one int per code point in that range holding the record of the character or -1. Every record has the same
+ * size: the number of neighbors followed by k pairs of neighbor code point and similarity score.
+ * Unencoded components of the decomposition, which are named by a number instead of a character, have no code point.
+ * They can't be looked up and are stored with the negated number when they are the neighbor of another character.
+ */
+public class SimilarityIndex implements Closeable {
+    private static final int MAGIC = 0x485A5349;    // "HZSI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 6 * 4;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int k;
+    private final int minCodePoint;
+    private final int tableLength;
+    private final int recordsStart;
+    private final int recordSize;
+
+    public SimilarityIndex(String fname) throws IOException {
+        channel = FileChannel.open(Paths.get(fname), StandardOpenOption.READ);
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            throw new IOException(fname + " is not a similarity index of version " + VERSION);
+        k = buffer.getInt(8);
+        minCodePoint = buffer.getInt(12);
+        tableLength = buffer.getInt(16) - minCodePoint + 1;
+        recordsStart = HEADER_SIZE + 4 * tableLength;
+        recordSize = recordSize(k);
+        if (buffer.limit() != recordsStart + (long) buffer.getInt(20) * recordSize)
+            throw new IOException(fname + " is incomplete");
+    }
+
+    /**
+     * @return How many neighbors are stored at most per character
+     */
+    public int capacity() {
+        return k;
+    }
+
+    /**
+     * @return Number of similar characters stored for the code point, 0 if the character isn't in the index
+     */
+    public int size(int codePoint) {
+        int record = record(codePoint);
+        return record == -1 ? 0 : buffer.getInt(record);
+    }
+
+    /**
+     * @param rank 0 for the most similar character, must be smaller than {@link #size(int)}
+     */
+    public int neighbor(int codePoint, int rank) {
+        return buffer.getInt(entry(codePoint, rank));
+    }
+
+    public float score(int codePoint, int rank) {
+        return buffer.getFloat(entry(codePoint, rank) + 4);
+    }
+
+    /**
+     * @return Position of the neighbor with the given rank
+     * @throws IndexOutOfBoundsException if the code point isn't in the index or has fewer neighbors
+     */
+    private int entry(int codePoint, int rank) {
+        int record = record(codePoint);
+        if (record == -1 || rank < 0 || rank >= buffer.getInt(record))
+            throw new IndexOutOfBoundsException("No neighbor " + rank + " of code point " + codePoint);
+        return record + 4 + 8 * rank;
+    }
+
+    /**
+     * Copies the similar characters of the code point and their scores, most similar first
+     *
+     * @return Number of entries written
+     */
+    public int neighbors(int codePoint, int[] codePoints, float[] scores) {
+        int record = record(codePoint);
+        if (record == -1)
+            return 0;
+        int count = Math.min(buffer.getInt(record), codePoints.length);
+        for (int rank = 0; rank < count; rank++) {
+            codePoints[rank] = buffer.getInt(record + 4 + 8 * rank);
+            scores[rank] = buffer.getFloat(record + 8 + 8 * rank);
+        }
+        return count;
+    }
+
+    private int record(int codePoint) {
+        int entry = codePoint - minCodePoint;
+        if (entry < 0 || entry >= tableLength)
+            return -1;
+        int slot = buffer.getInt(HEADER_SIZE + 4 * entry);
+        return slot == -1 ? -1 : recordsStart + slot * recordSize;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static int recordSize(int k) {
+        return 4 + 8 * k;
+    }
+
+    /**
+     * Writes rankings into their fixed-size records as they are computed, so rows can be written in any order and
+     * from several threads. The records go to a temporary file that only replaces the index on {@link #close()}, so
+     * a run that is cancelled or fails never leaves an index with missing records behind.
+     */
+    public static class Writer implements RankingWriter {
+        private final String fname;
+        private final Path temp;
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final int[] codePoints;
+        private final int[] slots;
+        private final long recordsStart;
+        private final int recordSize;
+        private final ThreadLocal<ByteBuffer> recordBuffers;
+
+        public Writer(String fname, List<String> allChars, int k) throws IOException {
+            codePoints = new int[allChars.size()];
+            int minCodePoint = Integer.MAX_VALUE;
+            int maxCodePoint = -1;
+            for (int i = 0; i < codePoints.length; i++) {
+                codePoints[i] = CharacterList.keyOf(allChars.get(i));
+                if (codePoints[i] > 0) {
+                    minCodePoint = Math.min(minCodePoint, codePoints[i]);
+                    maxCodePoint = Math.max(maxCodePoint, codePoints[i]);
+                }
+            }
+            if (maxCodePoint == -1)
+                minCodePoint = 0;
+
+            int[] table = new int[maxCodePoint - minCodePoint + 1];
+            Arrays.fill(table, -1);
+            slots = new int[codePoints.length];
+            int nRecords = 0;
+            for (int i = 0; i < codePoints.length; i++) {
+                if (codePoints[i] > 0) {
+                    slots[i] = nRecords++;
+                    table[codePoints[i] - minCodePoint] = slots[i];
+                } else {
+                    slots[i] = -1;
+                }
+            }
+
+            recordSize = recordSize(k);
+            recordsStart = HEADER_SIZE + 4L * table.length;
+            ByteBuffer header = ByteBuffer.allocate((int) recordsStart);
+            header.putInt(MAGIC).putInt(VERSION).putInt(k).putInt(minCodePoint).putInt(maxCodePoint).putInt(nRecords);
+            header.asIntBuffer().put(table);
+            header.position(0);
+
+            this.fname = fname;
+            temp = Resources.tempSibling(fname);
+            file = new RandomAccessFile(temp.toFile(), "rw");
+            // records that are never written stay zero, i.e. without neighbors
+            file.setLength(0);
+            file.setLength(recordsStart + (long) nRecords * recordSize);
+            channel = file.getChannel();
+            writeFully(header, 0);
+            recordBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(recordSize));
+        }
+
+        @Override
+        public void write(int i, TopK top) throws IOException {
+            if (slots[i] == -1)
+                return;
+            ByteBuffer record = recordBuffers.get();
+            record.clear();
+            int count = Math.min(top.size(), (recordSize - 4) / 8);
+            record.putInt(count);
+            for (int rank = 0; rank < count; rank++) {
+                record.putInt(codePoints[top.index(rank)]);
+                record.putFloat(top.score(rank));
+            }
+            record.flip();
+            writeFully(record, recordsStart + (long) slots[i] * recordSize);
+        }
+
+        private void writeFully(ByteBuffer source, long position) throws IOException {
+            while (source.hasRemaining())
+                position += channel.write(source, position);
+        }
+
+        @Override
+        public void checkpoint() throws IOException {
+            channel.force(false);
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+            Files.move(temp, Paths.get(fname), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        /**
+         * Discards the records, an index can't be resumed
+         */
+        @Override
+        public void abort() throws IOException {
+            file.close();
+            Files.deleteIfExists(temp);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package hanzisim;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Read-only view of a file with the similarity of every pair of characters, written by -m matrix. Pair scores are read
+ * straight from the memory-mapped file, and rankings with any cutoff are derived from them without scoring again.
+ * <p>
+ * The file starts with a header (magic, version, number of characters n, bytes per score, highest score) followed by
+ * the characters as code points or negated component numbers. Since similarity is symmetric, only the strict upper
+ * triangle is stored: row i holds the scores of i with i + 1 until n - 1. Scores are either floats or quantized to 16
+ * bit as a fraction of the highest score, in which case a score that isn't 0 is stored as at least 1.
+ */
+public class SimilarityMatrix implements Closeable {
+    private static final int MAGIC = 0x485A534D;    // "HZSM"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 5 * 4;
+    // a multiple of every score size, so that no score crosses the end of a mapped segment
+    private static final int SEGMENT_BITS = 30;
+    private static final int QUANTIZED_MAX = 0xFFFF;
+
+    private final FileChannel channel;
+    // a single buffer can't map more than 2 GB
+    private final MappedByteBuffer[] segments;
+    private final CharacterList chars;
+    private final int n;
+    private final int scoreSize;
+    private final float maxScore;
+    private final long scoresStart;
+
+    public SimilarityMatrix(String fname) throws IOException {
+        channel = FileChannel.open(Paths.get(fname), StandardOpenOption.READ);
+        long size = channel.size();
+        segments = new MappedByteBuffer[(int) ((size + (1L << SEGMENT_BITS) - 1) >>> SEGMENT_BITS)];
+        for (int s = 0; s < segments.length; s++) {
+            long position = (long) s << SEGMENT_BITS;
+            segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(1L << SEGMENT_BITS, size - position));
+        }
+        if (size < HEADER_SIZE || segments[0].getInt(0) != MAGIC || segments[0].getInt(4) != VERSION)
+            throw new IOException(fname + " is not a similarity matrix of version " + VERSION);
+        n = segments[0].getInt(8);
+        scoreSize = segments[0].getInt(12);
+        maxScore = segments[0].getFloat(16);
+        int[] keys = new int[n];
+        ByteBuffer header = segments[0].duplicate();
+        header.position(HEADER_SIZE);
+        header.asIntBuffer().get(keys);
+        chars = new CharacterList(keys);
+        scoresStart = HEADER_SIZE + 4L * n;
+        if (size != scoresStart + pairs(n) * scoreSize)
+            throw new IOException(fname + " is incomplete");
+    }
+
+    /**
+     * @return Number of pairs of distinct characters
+     */
+    private static long pairs(int n) {
+        return (long) n * (n - 1) / 2;
+    }
+
+    /**
+     * @return Position of the pair i < j in the upper triangle
+     */
+    private static long entry(int n, int i, int j) {
+        return (long) i * (2L * n - i - 1) / 2 + (j - i - 1);
+    }
+
+    /**
+     * @return All characters of the matrix, in the order of their indices
+     */
+    public List<String> characters() {
+        return chars;
+    }
+
+    public int size() {
+        return n;
+    }
+
+    /**
+     * @return Index of the character, -1 if it's not in the matrix
+     */
+    public int indexOf(String character) {
+        return chars.indexOf(character);
+    }
+
+    /**
+     * @return True if the scores were quantized to 16 bit
+     */
+    public boolean isQuantized() {
+        return scoreSize == 2;
+    }
+
+    public float score(String c1, String c2) {
+        int i = indexOf(c1);
+        int j = indexOf(c2);
+        if (i < 0 || j < 0)
+            throw new IllegalArgumentException("Unknown character " + (i < 0 ? c1 : c2));
+        return score(i, j);
+    }
+
+    /**
+     * @return Similarity of the characters with index i and j, 1 if i == j
+     */
+    public float score(int i, int j) {
+        if (i == j)
+            return 1;
+        long position = scoresStart + entry(n, Math.min(i, j), Math.max(i, j)) * scoreSize;
+        MappedByteBuffer segment = segments[(int) (position >>> SEGMENT_BITS)];
+        int offset = (int) (position & ((1L << SEGMENT_BITS) - 1));
+        if (scoreSize == 2)
+            return (segment.getShort(offset) & QUANTIZED_MAX) * maxScore / QUANTIZED_MAX;
+        return segment.getFloat(offset);
+    }
+
+    public List<Neighbor> topK(String character, int k) {
+        int i = indexOf(character);
+        if (i < 0)
+            throw new IllegalArgumentException("Unknown character " + character);
+        if (k <= 0)
+            throw new IllegalArgumentException("k must be positive");
+        TopK top = new TopK(Math.min(k, n));
+        rank(i, top);
+        List<Neighbor> result = new ArrayList<>(top.size());
+        for (int rank = 0; rank < top.size(); rank++)
+            result.add(new Neighbor(chars.get(top.index(rank)), top.score(rank)));
+        return result;
+    }
+
+    /**
+     * Offers the scores of character i with all others to top and sorts it. Without quantization this is the same
+     * ranking create computes with cutoff top.capacity().
+     */
+    public void rank(int i, TopK top) {
+        top.clear();
+        for (int j = 0; j < n; j++) {
+            if (j != i)
+                top.offer(j, score(i, j));
+        }
+        top.sort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Writes the upper triangle row by row as the rows are computed, so rows can be written in any order and from
+     * several threads. The rows go to a temporary file that only replaces the matrix on {@link #close()}, so a run
+     * that is killed or fails never leaves a matrix with unwritten rows behind.
+     */
+    public static class Writer implements Closeable {
+        private final String fname;
+        private final Path temp;
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final int n;
+        private final int scoreSize;
+        private final float maxScore;
+        private final long scoresStart;
+        private final ThreadLocal<ByteBuffer> rowBuffers;
+
+        public Writer(String fname, List<String> allChars, ScoringParams params, boolean quantize) throws IOException {
+            n = allChars.size();
+            scoreSize = quantize ? 2 : 4;
+            // matched components add at most pairWeight for two components of the total length
+            maxScore = Math.max(1, Math.max(params.variantScore, params.pairWeight / 2));
+            scoresStart = HEADER_SIZE + 4L * n;
+
+            ByteBuffer header = ByteBuffer.allocate((int) scoresStart);
+            header.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(scoreSize).putFloat(maxScore);
+            for (String c : allChars)
+                header.putInt(CharacterList.keyOf(c));
+            header.flip();
+
+            this.fname = fname;
+            temp = Resources.tempSibling(fname);
+            file = new RandomAccessFile(temp.toFile(), "rw");
+            file.setLength(0);
+            file.setLength(scoresStart + pairs(n) * scoreSize);
+            channel = file.getChannel();
+            writeFully(header, 0);
+            rowBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(Math.max(0, n - 1) * scoreSize));
+        }
+
+        /**
+         * @return Size of the file in bytes
+         */
+        public long length() {
+            return scoresStart + pairs(n) * scoreSize;
+        }
+
+        /**
+         * @param similarities similarity of i with every character, only the ones after i are written
+         */
+        public void writeRow(int i, float[] similarities) throws IOException {
+            ByteBuffer row = rowBuffers.get();
+            row.clear();
+            for (int j = i + 1; j < n; j++) {
+                if (scoreSize == 2)
+                    row.putShort((short) quantize(similarities[j]));
+                else
+                    row.putFloat(similarities[j]);
+            }
+            row.flip();
+            writeFully(row, scoresStart + entry(n, i, i + 1) * scoreSize);
+        }
+
+        private int quantize(float score) {
+            if (score <= 0)
+                return 0;
+            // keep similar characters distinguishable from dissimilar ones
+            return Math.max(1, Math.min(QUANTIZED_MAX, Math.round(score / maxScore * QUANTIZED_MAX)));
+        }
+
+        private void writeFully(ByteBuffer source, long position) throws IOException {
+            while (source.hasRemaining())
+                position += channel.write(source, position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+            Files.move(temp, Paths.get(fname), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        /**
+         * Discards the rows written so far
+         */
+        public void abort() throws IOException {
+            file.close();
+            Files.deleteIfExists(temp);
+        }
+    }
+}
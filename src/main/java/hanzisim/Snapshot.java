@@ -0,0 +1,287 @@
+package hanzisim;
+
+import org.apache.commons.cli.CommandLine;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * All data needed to rank characters: the packed decompositions and the variant graph. Can be stored in a binary
+ * file that is loaded much faster than parsing and flattening the source files again.
+ * The file records checksums of the decomposition, mapping and restrict files and of the radical set it was compiled
+ * from and is only used if they still match.
+ */
+public class Snapshot {
+    private static final int MAGIC = 0x485A5353;    // "HZSS"
+    private static final int VERSION = 4;
+    // decomposition file, radical set, mapping file and the files selecting the characters
+    private static final int CHECKSUMS = 4;
+
+    final CharacterList allChars;
+    final PackedDecomps decomp;
+    final VariantGraph variants;
+
+    public Snapshot(CharacterList allChars, PackedDecomps decomp, VariantGraph variants) {
+        this.allChars = allChars;
+        this.decomp = decomp;
+        this.variants = variants;
+    }
+
+    /**
+     * Parses and flattens the source files given on the command line
+     */
+    public static Snapshot fromSources(CommandLine args) {
+        return fromSelectedSources(args.getOptionValue("decomp"), args.getOptionValue("radicals"), args.getOptionValue("jpn2chin"),
+                Resources.selectedCharSet(args));
+    }
+
+    /**
+     * @param restrictPath only characters occurring in this file are included, all if it's null
+     */
+    public static Snapshot fromSources(String decompPath, String radicalsPath, String jpnToChinPath, String restrictPath) {
+        return fromSelectedSources(decompPath, radicalsPath, jpnToChinPath,
+                restrictPath != null ? Resources.readFileCharSet(restrictPath) : null);
+    }
+
+    /**
+     * @param restrictSet only these characters are included, all if it's null
+     */
+    static Snapshot fromSelectedSources(String decompPath, String radicalsPath, String jpnToChinPath, Set<String> restrictSet) {
+        Map<String, FlatDecomp[]> flattened = Resources.flattenDecomposition(decompPath, radicalsPath, restrictSet);
+        VariantGraph variants = Resources.readJapaneseToSimplChinese(jpnToChinPath);
+        return fromFlattened(flattened, variants);
+    }
+
+    public static Snapshot fromFlattened(Map<String, FlatDecomp[]> flattened, VariantGraph variants) {
+        CharacterList allChars = CharacterList.of(flattened.keySet());
+        return new Snapshot(allChars, new PackedDecomps(allChars, flattened), variants);
+    }
+
+    /**
+     * Reads the snapshot file given with --snapshot if it was compiled from the current sources. Otherwise the sources
+     * are parsed and the snapshot file is (re)written for the next run.
+     */
+    public static Snapshot load(CommandLine args) {
+        if (!args.hasOption("snapshot"))
+            return fromSources(args);
+
+        String fname = args.getOptionValue("snapshot");
+        long[] checksums = checksums(args);
+        try {
+            Snapshot snapshot = read(fname, checksums);
+            if (snapshot != null)
+                return snapshot;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        System.out.println("Snapshot " + fname + " is missing or outdated, parsing sources");
+        Snapshot snapshot = fromSources(args);
+        try {
+            snapshot.write(fname, checksums);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return Checksums of the decomposition file, the radical set, the mapping file and the restrict file, combined
+     * with the query and candidate files if both are given
+     */
+    public static long[] checksums(CommandLine args) {
+        long[] checksums = new long[CHECKSUMS];
+        try {
+            checksums[0] = fileChecksum(args.getOptionValue("decomp"));
+
+            List<String> radicals = new ArrayList<>(Resources.readRadicals(args.getOptionValue("radicals")));
+            Collections.sort(radicals);
+            CRC32 crc = new CRC32();
+            for (String radical : radicals) {
+                crc.update(radical.getBytes(StandardCharsets.UTF_8));
+                crc.update('\n');
+            }
+            checksums[1] = crc.getValue();
+
+            checksums[2] = fileChecksum(args.getOptionValue("jpn2chin"));
+            checksums[3] = args.hasOption("restrict") ? fileChecksum(args.getOptionValue("restrict")) : 0;
+            if (args.hasOption("queries") && args.hasOption("candidates")) {
+                checksums[3] = 31 * checksums[3] + fileChecksum(args.getOptionValue("queries"));
+                checksums[3] = 31 * checksums[3] + fileChecksum(args.getOptionValue("candidates"));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        return checksums;
+    }
+
+    private static long fileChecksum(String fname) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(Files.readAllBytes(Paths.get(fname)));
+        return crc.getValue();
+    }
+
+    /**
+     * Writes the snapshot to a temporary file that then replaces fname in one step, so that processes reading fname
+     * at the same time see either the old or the new file but never a partial one
+     */
+    public void write(String fname, long[] checksums) throws IOException {
+        Path temp = Resources.tempSibling(fname);
+        try {
+            writeTo(temp, checksums);
+            Files.move(temp, Paths.get(fname), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void writeTo(Path path, long[] checksums) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        for (long checksum : checksums)
+            out.writeLong(checksum);
+
+        out.writeInt(allChars.size());
+        for (int i = 0; i < allChars.size(); i++)
+            out.writeInt(allChars.key(i));
+        writeStrings(out, decomp.components);
+        out.writeInt(decomp.comps.length);
+        for (int offset : decomp.offsets)
+            out.writeInt(offset);
+        for (int comp : decomp.comps)
+            out.writeInt(comp);
+        for (float center : decomp.centerHorizontal)
+            out.writeFloat(center);
+        for (float center : decomp.centerVertical)
+            out.writeFloat(center);
+
+        out.writeInt(variants.groupOffsets.length);
+        for (int offset : variants.groupOffsets)
+            out.writeInt(offset);
+        out.writeInt(variants.groupMembers.length);
+        for (int member : variants.groupMembers)
+            out.writeInt(member);
+        out.writeInt(variants.directPairs.length);
+        for (long pair : variants.directPairs)
+            out.writeLong(pair);
+        out.close();
+    }
+
+    /**
+     * @param checksums checksums of the current sources, null to read the snapshot regardless of its sources
+     * @return The snapshot or null if the file doesn't exist, is incomplete, has a different version or was compiled
+     * from different sources
+     */
+    public static Snapshot read(String fname, long[] checksums) throws IOException {
+        if (!new File(fname).exists())
+            return null;
+
+        FileChannel channel = FileChannel.open(Paths.get(fname), StandardOpenOption.READ);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        channel.close();
+
+        try {
+            return read(buffer, checksums);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            // truncated or corrupt, e.g. written by an older build that didn't replace the file atomically
+            return null;
+        }
+    }
+
+    private static Snapshot read(ByteBuffer buffer, long[] checksums) {
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+            return null;
+        for (int c = 0; c < CHECKSUMS; c++) {
+            long checksum = buffer.getLong();
+            if (checksums != null && checksum != checksums[c])
+                return null;
+        }
+
+        int[] keys = new int[readCount(buffer)];
+        readInts(buffer, keys);
+        CharacterList allChars = new CharacterList(keys);
+        String[] components = readStrings(buffer);
+        int total = readCount(buffer);
+        int[] offsets = new int[allChars.size() + 1];
+        int[] comps = new int[total];
+        float[] centerHorizontal = new float[total];
+        float[] centerVertical = new float[total];
+        readInts(buffer, offsets);
+        readInts(buffer, comps);
+        readFloats(buffer, centerHorizontal);
+        readFloats(buffer, centerVertical);
+
+        int[] groupOffsets = new int[readCount(buffer)];
+        readInts(buffer, groupOffsets);
+        int[] groupMembers = new int[readCount(buffer)];
+        readInts(buffer, groupMembers);
+        long[] directPairs = new long[readCount(buffer)];
+        readLongs(buffer, directPairs);
+
+        return new Snapshot(allChars, new PackedDecomps(components, offsets, comps, centerHorizontal, centerVertical),
+                new VariantGraph(groupOffsets, groupMembers, directPairs));
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+        out.writeInt(strings.length);
+        for (String s : strings)
+            writeString(out, s);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[readCount(buffer)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String[] readStrings(ByteBuffer buffer) {
+        String[] strings = new String[readCount(buffer)];
+        for (int i = 0; i < strings.length; i++)
+            strings[i] = readString(buffer);
+        return strings;
+    }
+
+    /**
+     * @return A number of entries that follow, which can't be more than the bytes left in the buffer
+     */
+    private static int readCount(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining())
+            throw new BufferUnderflowException();
+        return count;
+    }
+
+    private static void readInts(ByteBuffer buffer, int[] values) {
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + 4 * values.length);
+    }
+
+    private static void readLongs(ByteBuffer buffer, long[] values) {
+        buffer.asLongBuffer().get(values);
+        buffer.position(buffer.position() + 8 * values.length);
+    }
+
+    private static void readFloats(ByteBuffer buffer, float[] values) {
+        buffer.asFloatBuffer().get(values);
+        buffer.position(buffer.position() + 4 * values.length);
+    }
+}
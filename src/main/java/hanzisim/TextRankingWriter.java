@@ -0,0 +1,61 @@
+package hanzisim;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes one line per character with the character, a semicolon and the comma-separated similar characters
+ */
+public class TextRankingWriter implements RankingWriter {
+    private final List<String> allChars;
+    private final FileOutputStream out;
+    private final BufferedWriter br;
+
+    /**
+     * @param append Whether to keep the rankings already in the file
+     */
+    public TextRankingWriter(String fname, List<String> allChars, boolean append) throws IOException {
+        this.allChars = allChars;
+        out = new FileOutputStream(fname, append);
+        br = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void write(int i, TopK top) throws IOException {
+        Resources.write(br, line(allChars, i, top) + "\n");
+    }
+
+    /**
+     * @return The line of character i without line break
+     */
+    static String line(List<String> allChars, int i, TopK top) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(allChars.get(i)).append(";");
+        // chars with similarity 0 are never kept in top so they aren't written to the file
+        for (int j = 0; j < top.size(); j++) {
+            if (j > 0)
+                sb.append(",");
+            sb.append(allChars.get(top.index(j)));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void checkpoint() throws IOException {
+        Resources.checkpoint(br, out);
+    }
+
+    @Override
+    public void close() throws IOException {
+        br.close();
+    }
+
+    /**
+     * Keeps the rankings written so far, a run with --resume continues after them
+     */
+    @Override
+    public void abort() throws IOException {
+        close();
+    }
+}
@@ -0,0 +1,106 @@
+package hanzisim;
+
+/**
+ * Keeps the k highest scores offered to it in a fixed-size min-heap of primitive indices and scores.
+ * Equal scores are ordered by index, lower index first, which gives the same order as
+ * {@link ArrayUtils#argsort(float[], boolean)} with ascending = false. Scores of 0 are never kept.
+ */
+public class TopK {
+    private final int[] indices;
+    private final float[] scores;
+    private int size;
+
+    public TopK(int k) {
+        indices = new int[k];
+        scores = new float[k];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return indices.length;
+    }
+
+    public boolean isFull() {
+        return size == indices.length;
+    }
+
+    /**
+     * @return The lowest score that is currently kept, which a new score has to beat once the heap is full
+     */
+    public float minScore() {
+        return size == 0 ? 0 : scores[0];
+    }
+
+    public void offer(int index, float score) {
+        if (score == 0 || indices.length == 0)
+            return;
+        if (size < indices.length) {
+            int pos = size++;
+            // sift up
+            while (pos > 0) {
+                int parent = (pos - 1) >>> 1;
+                if (!worse(index, score, indices[parent], scores[parent]))
+                    break;
+                indices[pos] = indices[parent];
+                scores[pos] = scores[parent];
+                pos = parent;
+            }
+            indices[pos] = index;
+            scores[pos] = score;
+        } else if (worse(indices[0], scores[0], index, score)) {
+            siftDown(0, index, score, size);
+        }
+    }
+
+    /**
+     * Sorts the kept entries from best to worst so they can be read with {@link #index(int)} and {@link #score(int)}.
+     * Offering further scores is only possible after {@link #clear()}.
+     */
+    public void sort() {
+        // heapsort: repeatedly move the worst remaining entry to the end
+        for (int end = size - 1; end > 0; end--) {
+            int index = indices[end];
+            float score = scores[end];
+            indices[end] = indices[0];
+            scores[end] = scores[0];
+            siftDown(0, index, score, end);
+        }
+    }
+
+    public int index(int rank) {
+        return indices[rank];
+    }
+
+    public float score(int rank) {
+        return scores[rank];
+    }
+
+    private void siftDown(int pos, int index, float score, int end) {
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= end)
+                break;
+            if (child + 1 < end && worse(indices[child + 1], scores[child + 1], indices[child], scores[child]))
+                child++;
+            if (!worse(indices[child], scores[child], index, score))
+                break;
+            indices[pos] = indices[child];
+            scores[pos] = scores[child];
+            pos = child;
+        }
+        indices[pos] = index;
+        scores[pos] = score;
+    }
+
+    private static boolean worse(int index1, float score1, int index2, float score2) {
+        int cmp = Float.compare(score1, score2);
+        return cmp < 0 || (cmp == 0 && index1 > index2);
+    }
+}
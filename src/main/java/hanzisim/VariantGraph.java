@@ -0,0 +1,238 @@
+package hanzisim;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Variant relation between code points, built from the rows of the mapping table. All forms listed in one row
+ * (Japanese, traditional and simplified) are variants of each other, and so are forms that are connected through
+ * several rows, so the relation is symmetric and transitive. Every connected group of forms is stored once, and all
+ * ordered pairs of distinct group members are kept in an open-addressed hash set of packed longs so that checking a
+ * pair needs neither boxing nor string comparisons.
+ * <p>
+ * Only the Japanese and simplified forms of the same row are direct variants. Traditional forms and forms that are
+ * only connected through other rows are looser, e.g. 槻 is a traditional form in the row of 規 and 叉 is connected to
+ * 一 through a chain of rows, so they are scored lower.
+ */
+public class VariantGraph {
+    public static final VariantGraph EMPTY = new VariantGraph(new int[]{0}, new int[0], new long[0]);
+
+    // members of group g are groupMembers[groupOffsets[g]] until groupMembers[groupOffsets[g + 1]], sorted
+    final int[] groupOffsets;
+    final int[] groupMembers;
+    // all members of all groups sorted, with the group of each
+    private final int[] codePoints;
+    private final int[] groupOf;
+    // (codePoint1 << 32 | codePoint2) for every pair of distinct members of a group, 0 is an empty slot
+    private final long[] pairs;
+    // (codePoint1 << 32 | codePoint2) for every pair of direct variants in both orders, sorted
+    final long[] directPairs;
+
+    VariantGraph(int[] groupOffsets, int[] groupMembers, long[] directPairs) {
+        this.groupOffsets = groupOffsets;
+        this.groupMembers = groupMembers;
+        this.directPairs = directPairs;
+        final int nGroups = groupOffsets.length - 1;
+
+        long[] byCodePoint = new long[groupMembers.length];
+        long nPairs = 0;
+        for (int g = 0; g < nGroups; g++) {
+            int size = groupOffsets[g + 1] - groupOffsets[g];
+            nPairs += (long) size * (size - 1);
+            for (int m = groupOffsets[g]; m < groupOffsets[g + 1]; m++)
+                byCodePoint[m] = (long) groupMembers[m] << 32 | g;
+        }
+        Arrays.sort(byCodePoint);
+        codePoints = new int[byCodePoint.length];
+        groupOf = new int[byCodePoint.length];
+        for (int n = 0; n < byCodePoint.length; n++) {
+            codePoints[n] = (int) (byCodePoint[n] >>> 32);
+            groupOf[n] = (int) byCodePoint[n];
+        }
+
+        // load factor at most 1/2
+        int capacity = Integer.highestOneBit((int) Math.max(1, nPairs) * 2) * 2;
+        pairs = new long[capacity];
+        for (int g = 0; g < nGroups; g++) {
+            for (int a = groupOffsets[g]; a < groupOffsets[g + 1]; a++) {
+                for (int b = groupOffsets[g]; b < groupOffsets[g + 1]; b++) {
+                    if (a != b)
+                        insert(pack(groupMembers[a], groupMembers[b]));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param japanese Japanese forms of every row of the mapping table
+     * @param simplified simplified forms of every row
+     * @param rows all forms of every row, rows may overlap
+     */
+    static VariantGraph fromRows(List<int[]> japanese, List<int[]> simplified, List<int[]> rows) {
+        int nDirect = 0;
+        for (int r = 0; r < rows.size(); r++)
+            nDirect += 2 * japanese.get(r).length * simplified.get(r).length;
+        long[] directPairs = new long[nDirect];
+        nDirect = 0;
+        for (int r = 0; r < rows.size(); r++) {
+            for (int form1 : japanese.get(r)) {
+                for (int form2 : simplified.get(r)) {
+                    if (form1 != form2) {
+                        directPairs[nDirect++] = pack(form1, form2);
+                        directPairs[nDirect++] = pack(form2, form1);
+                    }
+                }
+            }
+        }
+        Arrays.sort(directPairs, 0, nDirect);
+        int nUnique = 0;
+        for (int k = 0; k < nDirect; k++) {
+            if (k == 0 || directPairs[k] != directPairs[k - 1])
+                directPairs[nUnique++] = directPairs[k];
+        }
+        directPairs = Arrays.copyOf(directPairs, nUnique);
+
+        int total = 0;
+        for (int[] row : rows)
+            total += row.length;
+        int[] nodes = new int[total];
+        int pos = 0;
+        for (int[] row : rows) {
+            System.arraycopy(row, 0, nodes, pos, row.length);
+            pos += row.length;
+        }
+        Arrays.sort(nodes);
+        int n = 0;
+        for (int k = 0; k < nodes.length; k++) {
+            if (k == 0 || nodes[k] != nodes[k - 1])
+                nodes[n++] = nodes[k];
+        }
+        nodes = Arrays.copyOf(nodes, n);
+
+        // union-find over the positions in nodes
+        int[] parent = new int[n];
+        for (int k = 0; k < n; k++)
+            parent[k] = k;
+        for (int[] row : rows) {
+            for (int k = 1; k < row.length; k++) {
+                int root1 = find(parent, Arrays.binarySearch(nodes, row[0]));
+                int root2 = find(parent, Arrays.binarySearch(nodes, row[k]));
+                // the smaller root stays, so each group is numbered by its smallest code point
+                parent[Math.max(root1, root2)] = Math.min(root1, root2);
+            }
+        }
+
+        // groups of a single form have no variants and are dropped
+        int[] sizes = new int[n];
+        for (int k = 0; k < n; k++)
+            sizes[find(parent, k)]++;
+        int[] groupIds = new int[n];
+        int nGroups = 0;
+        int nMembers = 0;
+        for (int k = 0; k < n; k++) {
+            if (parent[k] == k && sizes[k] > 1) {
+                groupIds[k] = nGroups++;
+                nMembers += sizes[k];
+            }
+        }
+        int[] groupOffsets = new int[nGroups + 1];
+        for (int k = 0; k < n; k++) {
+            if (parent[k] == k && sizes[k] > 1)
+                groupOffsets[groupIds[k] + 1] = sizes[k];
+        }
+        for (int g = 0; g < nGroups; g++)
+            groupOffsets[g + 1] += groupOffsets[g];
+        int[] groupMembers = new int[nMembers];
+        int[] fill = Arrays.copyOf(groupOffsets, nGroups);
+        // nodes are sorted, so the members of each group are as well
+        for (int k = 0; k < n; k++) {
+            int root = find(parent, k);
+            if (sizes[root] > 1)
+                groupMembers[fill[groupIds[root]]++] = nodes[k];
+        }
+        return new VariantGraph(groupOffsets, groupMembers, directPairs);
+    }
+
+    private static int find(int[] parent, int k) {
+        while (parent[k] != k) {
+            parent[k] = parent[parent[k]];
+            k = parent[k];
+        }
+        return k;
+    }
+
+    private static long pack(int codePoint1, int codePoint2) {
+        return (long) codePoint1 << 32 | codePoint2;
+    }
+
+    private static int slot(long key, int mask) {
+        return (int) ArrayUtils.mix(key) & mask;
+    }
+
+    private void insert(long key) {
+        int mask = pairs.length - 1;
+        int s = slot(key, mask);
+        while (pairs[s] != 0 && pairs[s] != key)
+            s = (s + 1) & mask;
+        pairs[s] = key;
+    }
+
+    /**
+     * @return True if the two code points are distinct variants of each other
+     */
+    public boolean contains(int codePoint1, int codePoint2) {
+        long key = pack(codePoint1, codePoint2);
+        int mask = pairs.length - 1;
+        for (int s = slot(key, mask); pairs[s] != 0; s = (s + 1) & mask) {
+            if (pairs[s] == key)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return True if one code point is the Japanese and the other a simplified form in the same row of the mapping
+     */
+    public boolean isDirect(int codePoint1, int codePoint2) {
+        return Arrays.binarySearch(directPairs, pack(codePoint1, codePoint2)) >= 0;
+    }
+
+    /**
+     * @return The direct variants of the code point in ascending order, empty if it has none
+     */
+    public int[] directVariants(int codePoint) {
+        int from = Arrays.binarySearch(directPairs, pack(codePoint, 0));
+        from = from < 0 ? -from - 1 : from;
+        int to = from;
+        while (to < directPairs.length && (int) (directPairs[to] >>> 32) == codePoint)
+            to++;
+        int[] result = new int[to - from];
+        for (int k = from; k < to; k++)
+            result[k - from] = (int) directPairs[k];
+        return result;
+    }
+
+    /**
+     * @return All variants of the code point except itself in ascending order, empty if it has none
+     */
+    public int[] variants(int codePoint) {
+        int n = Arrays.binarySearch(codePoints, codePoint);
+        if (n < 0)
+            return new int[0];
+        int g = groupOf[n];
+        int[] result = new int[groupOffsets[g + 1] - groupOffsets[g] - 1];
+        int r = 0;
+        for (int m = groupOffsets[g]; m < groupOffsets[g + 1]; m++) {
+            if (groupMembers[m] != codePoint)
+                result[r++] = groupMembers[m];
+        }
+        return result;
+    }
+
+    /**
+     * @return All code points that have at least one variant, in ascending order
+     */
+    public int[] codePoints() {
+        return codePoints.clone();
+    }
+}
@@ -0,0 +1,33 @@
+package hanzisim;
+
+/**
+ * Buffers for ranking one character at a time without allocating. Not thread safe, every thread needs its own.
+ */
+class Workspace {
+    final int[] stamps;
+    final int[] candidates;
+    final float[] scratch;
+    final TopK top;
+    // candidates sorted by decomposition length and the start of every length in it
+    final int[] sorted;
+    final int[] lengthStarts;
+    final int[] lengthEnds;
+    private int stamp;
+
+    Workspace(PackedDecomps decomp, int cutoff) {
+        stamps = new int[decomp.size()];
+        candidates = new int[decomp.size()];
+        sorted = new int[decomp.size()];
+        lengthStarts = new int[decomp.maxLength + 2];
+        lengthEnds = new int[decomp.maxLength + 1];
+        scratch = decomp.newScratch();
+        top = new TopK(cutoff);
+    }
+
+    /**
+     * @return Stamp for {@link ComponentIndex#collectCandidates} that hasn't been used with this workspace before
+     */
+    int nextStamp() {
+        return ++stamp;
+    }
+}